@@ -0,0 +1,181 @@
+package discordbot;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.json.JSONObject;
+
+/**
+ * A change subscriber that writes each change as one line of JSON, to a local file or a socket. Each line can be read
+ * back with 'new DatabaseChange(new JSONObject(line))' and applied to a replica with 'ServerDatabase.applyChange'.
+ *
+ * When changes are missed, a line of the form {"missed": count} is written and flushed, so that readers know to rebuild
+ * their replica. If writing fails, the sink reconnects and retries the batch once before dropping it. Dropped batches
+ * count as missed, and a marker that could not be written is written before the next batch instead, so readers are
+ * always told about a gap before they see the changes after it.
+ *
+ * @author austinbt
+ */
+public class ChangeSink implements ChangeStream.Subscriber, Closeable {
+
+    /**
+     * Opens the writer that changes are written to
+     */
+    public interface Connector {
+
+        /**
+         * Opens a new writer
+         *
+         * @return The opened writer
+         * @throws IOException
+         */
+        Writer connect() throws IOException;
+    }
+
+    private final Connector connector;
+    private Writer writer;
+    private long dropped = 0;
+    private long pendingMissed = 0;
+
+    /**
+     * Creates a sink that writes to writers opened by the given connector. The connector is first used when the first
+     * batch arrives.
+     *
+     * @param connector Opens the writer to write changes to
+     */
+    public ChangeSink(Connector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * Creates a sink that appends changes to a file
+     *
+     * @param file Path to the file
+     * @return The sink
+     */
+    public static ChangeSink toFile(String file) {
+        return new ChangeSink(() -> new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates a sink that sends changes to a socket
+     *
+     * @param host Host to connect to
+     * @param port Port to connect to
+     * @return The sink
+     */
+    public static ChangeSink toSocket(String host, int port) {
+        return new ChangeSink(() -> {
+            Socket socket = new Socket(host, port);
+            return new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        });
+    }
+
+    /**
+     * Writes a batch of changes, one per line, and flushes them. A missed marker that could not be written earlier is
+     * written first.
+     *
+     * @param changes Changes to write
+     */
+    @Override
+    public synchronized void onChanges(List<DatabaseChange> changes) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                connect();
+                writeMissed();
+
+                for (DatabaseChange change : changes) {
+                    writer.write(change.saveState().toString());
+                    writer.write('\n');
+                }
+                writer.flush();
+                pendingMissed = 0;
+
+                return;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                close();
+            }
+        }
+
+        dropped += changes.size();
+        pendingMissed += changes.size();
+    }
+
+    /**
+     * Writes and flushes a line telling readers how many changes were missed. If it can't be written, it is written
+     * before the next batch instead.
+     *
+     * @param missed Number of changes that were missed
+     */
+    @Override
+    public synchronized void onMissed(long missed) {
+        pendingMissed += missed;
+
+        try {
+            connect();
+            writeMissed();
+            writer.flush();
+            pendingMissed = 0;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    //Opens a writer if there is none
+    private void connect() throws IOException {
+        if (writer == null) {
+            writer = connector.connect();
+        }
+    }
+
+    //Writes the missed marker if any changes were missed since the last one was flushed
+    private void writeMissed() throws IOException {
+        if (pendingMissed > 0) {
+            JSONObject json = new JSONObject();
+            json.put("missed", pendingMissed);
+
+            writer.write(json.toString());
+            writer.write('\n');
+        }
+    }
+
+    /**
+     *
+     * @return Number of missed changes that readers have not yet been told about
+     */
+    public synchronized long getPendingMissed() {
+        return pendingMissed;
+    }
+
+    /**
+     *
+     * @return Number of changes that could not be written
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Closes the current writer. The next batch opens a new one.
+     */
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                //Already broken
+            }
+            writer = null;
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+package discordbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+import org.json.JSONObject;
+
+/**
+ * An ordered stream of the changes made to a ServerDatabase, delivered to subscribers in batches.
+ *
+ * Changes are kept in a fixed size ring buffer. Publishing a change only takes a short lock to store it in the ring,
+ * and never waits for subscribers. Each subscriber is fed by its own thread, which delivers every change published
+ * since its last batch. A subscriber that falls more than the ring's capacity behind skips the changes that were
+ * overwritten, and is told how many it missed.
+ *
+ * Sequences start at 0 for every new stream, so they restart each time the bot process starts. A sequence only
+ * identifies a change within the stream, and the process, that published it.
+ *
+ * @author austinbt
+ */
+public class ChangeStream {
+
+    /**
+     * Receives batches of changes
+     */
+    public interface Subscriber {
+
+        /**
+         * Is called on the subscription's thread with every change published since the last batch, in sequence order
+         *
+         * @param changes Changes to handle, never empty
+         */
+        void onChanges(List<DatabaseChange> changes);
+
+        /**
+         * Is called on the subscription's thread when changes were overwritten before they could be delivered. A
+         * replica that misses changes should be rebuilt from a saved database.
+         *
+         * @param missed Number of changes that were missed
+         */
+        default void onMissed(long missed) {
+            //Ignore by default
+        }
+    }
+
+    private final DatabaseChange[] ring;
+    private final int maxBatch;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList();
+
+    //Sequence the next published change will have
+    private long nextSequence = 0;
+
+    /**
+     * Creates a change stream
+     *
+     * @param capacity Number of changes kept for subscribers that fall behind
+     * @param maxBatch Largest number of changes delivered in one batch
+     */
+    public ChangeStream(int capacity, int maxBatch) {
+        if (capacity < 1 || maxBatch < 1) {
+            throw new IllegalArgumentException("Capacity and batch size must be at least 1");
+        }
+
+        this.ring = new DatabaseChange[capacity];
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     *
+     * @return True if there is at least one open subscription
+     */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Publishes a change. Does nothing if there are no subscribers, in which case data is never built.
+     *
+     * @param type Kind of change
+     * @param guildId Discord GuildID of the changed guild, or null
+     * @param userId Discord UserID of the changed user, or null
+     * @param data Builds the state of the changed record after the change. May be null for removals.
+     */
+    public void publish(DatabaseChange.Type type, String guildId, String userId, Supplier<JSONObject> data) {
+        if (!hasSubscribers()) {
+            return;
+        }
+
+        JSONObject json = data == null ? null : data.get();
+
+        synchronized (this) {
+            ring[(int) (nextSequence % ring.length)] = new DatabaseChange(nextSequence, System.currentTimeMillis(), type, guildId, userId, json);
+            nextSequence++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Subscribes to changes published from now on. The subscriber is fed by a new thread until the subscription is
+     * closed.
+     *
+     * @param subscriber Subscriber to deliver changes to
+     * @return The subscription, used to close it
+     */
+    public Subscription subscribe(Subscriber subscriber) {
+        Subscription subscription;
+        synchronized (this) {
+            subscription = new Subscription(subscriber, nextSequence);
+        }
+
+        subscriptions.add(subscription);
+        subscription.thread.start();
+
+        return subscription;
+    }
+
+    //Waits for changes after 'from' and copies up to maxBatch of them into batch. Returns the number of changes missed.
+    private synchronized long take(long from, ArrayList<DatabaseChange> batch, Subscription subscription) throws InterruptedException {
+        while (nextSequence == from) {
+            if (subscription.closed) {
+                throw new InterruptedException();
+            }
+            wait();
+        }
+
+        //Anything older than the ring has been overwritten
+        long oldest = Math.max(0, nextSequence - ring.length);
+        long missed = Math.max(0, oldest - from);
+
+        for (long sequence = from + missed; sequence < nextSequence && batch.size() < maxBatch; sequence++) {
+            batch.add(ring[(int) (sequence % ring.length)]);
+        }
+
+        return missed;
+    }
+
+    /**
+     * A subscriber's place in a change stream
+     */
+    public class Subscription {
+
+        private final Subscriber subscriber;
+        private final Thread thread;
+        private final long startSequence;
+        private volatile boolean closed = false;
+        private volatile long next;
+        private volatile long missed = 0;
+
+        private Subscription(Subscriber subscriber, long next) {
+            this.subscriber = subscriber;
+            this.startSequence = next;
+            this.next = next;
+            this.thread = new Thread(this::run, "ChangeStream");
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Stops delivering changes to the subscriber. Changes already taken by the subscription's thread are still
+         * delivered.
+         */
+        public void close() {
+            closed = true;
+            subscriptions.remove(this);
+            synchronized (ChangeStream.this) {
+                ChangeStream.this.notifyAll();
+            }
+        }
+
+        /**
+         *
+         * @return Sequence of the first change this subscription delivers
+         */
+        public long getStartSequence() {
+            return startSequence;
+        }
+
+        /**
+         *
+         * @return Sequence of the next change that will be delivered
+         */
+        public long getNextSequence() {
+            return next;
+        }
+
+        /**
+         *
+         * @return Total number of changes this subscription has missed
+         */
+        public long getMissed() {
+            return missed;
+        }
+
+        //Subscription thread loop
+        private void run() {
+            ArrayList<DatabaseChange> batch = new ArrayList();
+
+            while (!closed) {
+                batch.clear();
+
+                long lost;
+                try {
+                    lost = take(next, batch, this);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+
+                //Advanced before delivering, so a subscriber sees its own batch as taken
+                missed += lost;
+                next = batch.get(batch.size() - 1).getSequence() + 1;
+
+                try {
+                    if (lost > 0) {
+                        subscriber.onMissed(lost);
+                    }
+                    subscriber.onChanges(new ArrayList(batch));
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+package discordbot;
+
+import org.json.JSONObject;
+
+/**
+ * A single change made to a ServerDatabase, as published to change subscribers.
+ *
+ * Changes carry the state of the changed record after the change, so applying them in sequence order to a copy of the
+ * database reproduces the original. See 'ServerDatabase.applyChange'.
+ *
+ * @author austinbt
+ */
+public class DatabaseChange {
+
+    /**
+     * Kinds of changes
+     */
+    public enum Type {
+        /**
+         * A guild was added. Data is the new GuildData, which replaces any existing data for the guild when applied.
+         */
+        GUILD_ADDED,
+        /**
+         * A guild was removed. Data is null.
+         */
+        GUILD_REMOVED,
+        /**
+         * A guild's settings changed. Data is the new GuildSettings.
+         */
+        GUILD_CHANGED,
+        /**
+         * A user's userdata in a guild was added or removed. Data is the new GuildUserData, or null if it was removed.
+         */
+        GUILD_USER_CHANGED,
+        /**
+         * A global user was added. Data is the new GlobalUserData, which replaces any existing data for the user when
+         * applied.
+         */
+        GLOBAL_USER_ADDED,
+        /**
+         * A global user was seen. Data is the GlobalUserData with its new lastSeen, which replaces any existing data for
+         * the user when applied. Published at most once per 'ServerDatabase.setLastSeenPublishInterval' for each user.
+         */
+        GLOBAL_USER_SEEN,
+        /**
+         * A global user was removed. Data is null.
+         */
+        GLOBAL_USER_REMOVED
+    }
+
+    private final long sequence;
+    private final long timestamp;
+    private final Type type;
+    private final String guildId;
+    private final String userId;
+    private final JSONObject data;
+
+    /**
+     * Creates a change
+     *
+     * @param sequence Position of this change in the stream of all changes
+     * @param timestamp Time of the change, in milliseconds since the epoch
+     * @param type Kind of change
+     * @param guildId Discord GuildID of the changed guild, null for global user changes
+     * @param userId Discord UserID of the changed user, null for guild changes
+     * @param data State of the changed record after the change, null for removals
+     */
+    public DatabaseChange(long sequence, long timestamp, Type type, String guildId, String userId, JSONObject data) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.guildId = guildId;
+        this.userId = userId;
+        this.data = data;
+    }
+
+    /**
+     * Creates a change from a JSONObject representation of it
+     *
+     * *JSON IS EXPECTED TO BE PROPER FORMAT*
+     *
+     * @param json JSONObject to load from
+     */
+    public DatabaseChange(JSONObject json) {
+        this(json.getLong("sequence"), json.getLong("timestamp"), Type.valueOf(json.getString("type")),
+                json.optString("guildId", null), json.optString("userId", null), json.optJSONObject("data"));
+    }
+
+    /**
+     *
+     * @return Position of this change in the stream of all changes. Sequences start at 0 and have no gaps.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     *
+     * @return Time of the change, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     *
+     * @return Kind of change
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     *
+     * @return Discord GuildID of the changed guild, null for global user changes
+     */
+    public String getGuildId() {
+        return guildId;
+    }
+
+    /**
+     *
+     * @return Discord UserID of the changed user, null for guild changes
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     *
+     * @return State of the changed record after the change, null for removals
+     */
+    public JSONObject getData() {
+        return data;
+    }
+
+    /**
+     * Creates a JSONObject representation of this change
+     *
+     * @return A JSONObject representation of this change
+     */
+    public JSONObject saveState() {
+        JSONObject json = new JSONObject();
+
+        json.put("sequence", sequence);
+        json.put("timestamp", timestamp);
+        json.put("type", type.name());
+        if (guildId != null) {
+            json.put("guildId", guildId);
+        }
+        if (userId != null) {
+            json.put("userId", userId);
+        }
+        if (data != null) {
+            json.put("data", data);
+        }
+
+        return json;
+    }
+
+}
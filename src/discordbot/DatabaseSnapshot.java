@@ -0,0 +1,278 @@
+package discordbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A point in time copy of the contents of a ServerDatabase, for running aggregate queries without touching the live
+ * database. Created with 'ServerDatabase.snapshot()'.
+ *
+ * All streams are parallel and run on the common fork/join pool. Filters and counts are done with the streams
+ * directly, for example 'snapshot.guilds().filter(guild -> guild.getUserCount() > 100).count()'. Top-N and group-by
+ * queries that are awkward to write with plain streams are provided by 'top' and 'countBy'.
+ *
+ * @author austinbt
+ */
+public class DatabaseSnapshot {
+
+    /**
+     * A guild as it was when the snapshot was taken
+     */
+    public static class GuildEntry {
+
+        private final String id;
+        private final GuildSettings settings;
+        private final List<GuildUserData> users;
+
+        /**
+         * Copies the current state of a guild. Its userdata is copied while the GuildData is locked.
+         *
+         * @param data GuildData to copy
+         */
+        GuildEntry(GuildData data) {
+            this.id = data.getId();
+            this.settings = data.getSettings();
+            this.users = Collections.unmodifiableList(data.copyUserData());
+        }
+
+        /**
+         *
+         * @return The Discord GuildID of this guild
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         *
+         * @return The settings of this guild when the snapshot was taken
+         */
+        public GuildSettings getSettings() {
+            return settings;
+        }
+
+        /**
+         *
+         * @return Unmodifiable list of the userdata in this guild when the snapshot was taken
+         */
+        public List<GuildUserData> getUsers() {
+            return users;
+        }
+
+        /**
+         *
+         * @return Number of users with userdata in this guild when the snapshot was taken
+         */
+        public int getUserCount() {
+            return users.size();
+        }
+    }
+
+    /**
+     * A global user as it was when the snapshot was taken
+     */
+    public static class GlobalUserEntry {
+
+        private final String id;
+        private final long lastSeen;
+
+        /**
+         * Copies the current state of a global user
+         *
+         * @param data GlobalUserData to copy
+         */
+        GlobalUserEntry(GlobalUserData data) {
+            this.id = data.getId();
+            this.lastSeen = data.getLastSeen();
+        }
+
+        /**
+         *
+         * @return The Discord UserID of this user
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         *
+         * @return Time this user was last seen before the snapshot was taken, in milliseconds since the epoch
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    /**
+     * The userdata of a single user in a single guild
+     */
+    public static class MemberEntry {
+
+        private final GuildEntry guild;
+        private final GuildUserData user;
+
+        private MemberEntry(GuildEntry guild, GuildUserData user) {
+            this.guild = guild;
+            this.user = user;
+        }
+
+        /**
+         *
+         * @return The guild this userdata belongs to
+         */
+        public GuildEntry getGuild() {
+            return guild;
+        }
+
+        /**
+         *
+         * @return The userdata
+         */
+        public GuildUserData getUser() {
+            return user;
+        }
+    }
+
+    private final List<GuildEntry> guilds;
+    private final List<GlobalUserEntry> globalUsers;
+    private final long takenAt = System.currentTimeMillis();
+
+    /**
+     * Creates a snapshot from copies of a database's contents
+     *
+     * @param guilds Copy of every guild
+     * @param globalUsers Copy of every global user
+     */
+    DatabaseSnapshot(List<GuildEntry> guilds, List<GlobalUserEntry> globalUsers) {
+        this.guilds = Collections.unmodifiableList(guilds);
+        this.globalUsers = Collections.unmodifiableList(globalUsers);
+    }
+
+    /**
+     *
+     * @return Time this snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    /**
+     *
+     * @return Parallel stream of every guild in this snapshot
+     */
+    public Stream<GuildEntry> guilds() {
+        return guilds.parallelStream();
+    }
+
+    /**
+     *
+     * @return Parallel stream of every global user in this snapshot
+     */
+    public Stream<GlobalUserEntry> globalUsers() {
+        return globalUsers.parallelStream();
+    }
+
+    /**
+     *
+     * @return Parallel stream of the userdata of every user in every guild in this snapshot
+     */
+    public Stream<MemberEntry> members() {
+        return guilds.parallelStream().flatMap((GuildEntry guild) -> guild.users.stream().map((GuildUserData user) -> new MemberEntry(guild, user)));
+    }
+
+    /**
+     *
+     * @return Number of guilds in this snapshot
+     */
+    public int getGuildCount() {
+        return guilds.size();
+    }
+
+    /**
+     *
+     * @return Number of global users in this snapshot
+     */
+    public int getGlobalUserCount() {
+        return globalUsers.size();
+    }
+
+    /**
+     *
+     * @param n Number of guilds to return
+     * @return The n guilds with the most users, most users first
+     */
+    public List<GuildEntry> topGuildsByUsers(int n) {
+        return top(guilds(), Comparator.comparingInt(GuildEntry::getUserCount), n);
+    }
+
+    /**
+     *
+     * @param idleMillis Time a user must not have been seen for to be stale
+     * @return Every global user that was not seen for at least idleMillis before this snapshot was taken
+     */
+    public List<GlobalUserEntry> staleGlobalUsers(long idleMillis) {
+        long cutoff = takenAt - idleMillis;
+        return globalUsers().filter((GlobalUserEntry user) -> user.getLastSeen() <= cutoff).collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the greatest n elements of a stream without sorting all of it. Each fork/join task keeps a heap of at most n
+     * elements, and the heaps are merged.
+     *
+     * @param <T> Element type
+     * @param stream Stream to search
+     * @param comparator Order of the elements
+     * @param n Number of elements to return
+     * @return The greatest n elements, greatest first
+     */
+    public static <T> List<T> top(Stream<T> stream, Comparator<? super T> comparator, int n) {
+        if (n <= 0) {
+            return new ArrayList();
+        }
+
+        return stream.collect(Collector.of(
+                () -> new PriorityQueue<T>(n + 1, comparator),
+                (PriorityQueue<T> heap, T element) -> {
+                    heap.add(element);
+                    if (heap.size() > n) {
+                        heap.poll();
+                    }
+                },
+                (PriorityQueue<T> left, PriorityQueue<T> right) -> {
+                    for (T element : right) {
+                        left.add(element);
+                        if (left.size() > n) {
+                            left.poll();
+                        }
+                    }
+                    return left;
+                },
+                (PriorityQueue<T> heap) -> {
+                    ArrayList<T> list = new ArrayList(heap);
+                    list.sort(comparator.reversed());
+                    return list;
+                }));
+    }
+
+    /**
+     * Groups the elements of a stream by a key and counts each group, concurrently
+     *
+     * @param <T> Element type
+     * @param <K> Key type
+     * @param stream Stream to group
+     * @param key Function giving the group of each element
+     * @return Number of elements in each group
+     */
+    public static <T, K> Map<K, Long> countBy(Stream<T> stream, Function<? super T, ? extends K> key) {
+        return stream.collect(Collectors.groupingByConcurrent(key, Collectors.counting()));
+    }
+
+}
@@ -1,11 +1,15 @@
 package discordbot;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.function.UnaryOperator;
 import javax.security.auth.login.LoginException;
 import net.dv8tion.jda.JDA;
 import net.dv8tion.jda.JDABuilder;
+import net.dv8tion.jda.entities.Role;
 import net.dv8tion.jda.events.guild.GuildJoinEvent;
 import net.dv8tion.jda.events.guild.GuildLeaveEvent;
 import net.dv8tion.jda.events.message.MessageReceivedEvent;
@@ -20,9 +24,13 @@ import net.dv8tion.jda.hooks.ListenerAdapter;
 public class DiscordBot extends ListenerAdapter {
 
     private static final String TOKEN = "ayylmao";
-    private static final char COMMAND = '!';
     private static final String SAVE_FILE = "server.data";
     private static final long SAVE_RATE = 60 * 1000;
+    private static final ServerDatabase.Compression SAVE_COMPRESSION = ServerDatabase.Compression.DEFLATE;
+    private static final ServerDatabase.FsyncPolicy SAVE_FSYNC_POLICY = ServerDatabase.FsyncPolicy.FILE;
+    private static final int SAVE_BACKUP_GENERATIONS = 3;
+    static final int EVENT_QUEUE_CAPACITY = 10000;
+    static final EventQueue.Policy EVENT_QUEUE_POLICY = EventQueue.Policy.PRIORITIZE;
     
     /**
      * The name of this bot
@@ -35,32 +43,55 @@ public class DiscordBot extends ListenerAdapter {
     
     private ServerDatabase database;
     private Timer databaseSaver;
+    private EventQueue eventQueue;
     
     /**
      * Builds a JDA instance and adds an instance of this class as an EventListener
      * 
-     * @param args Arguments have no effect
+     * If a shard count is given, that many JDA shards are run instead, sharing one partitioned database.
+     * 
+     * @param args Optionally, the number of shards to run
      */
     public static void main(String[] args) {
         try {
-            JDA jda = new JDABuilder().setBotToken(TOKEN).buildBlocking();
-            jda.addEventListener(new DiscordBot());
-        } catch (LoginException | IllegalArgumentException | InterruptedException ex) {
+            if (args.length > 0) {
+                ShardLauncher launcher = new ShardLauncher(Integer.parseInt(args[0]), SAVE_FILE, SAVE_RATE);
+                configureSaving(launcher.getDatabase());
+                launcher.launch(DiscordBot::startShard);
+            } else {
+                JDA jda = new JDABuilder().setBotToken(TOKEN).buildBlocking();
+                jda.addEventListener(new DiscordBot());
+            }
+        } catch (LoginException | IllegalArgumentException | InterruptedException | IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
     }
+    
+    /**
+     * Builds a JDA instance for a single shard with the given bot as its EventListener
+     * 
+     * @param shardId Id of the shard to build
+     * @param shardCount Total number of shards
+     * @param bot Bot to handle events for this shard
+     * @return The connected shard
+     * @throws LoginException
+     * @throws InterruptedException
+     */
+    public static ShardLauncher.Shard startShard(int shardId, int shardCount, DiscordBot bot) throws LoginException, InterruptedException {
+        JDA jda = new JDABuilder().setBotToken(TOKEN).useSharding(shardId, shardCount).addListener(bot).buildBlocking();
+        
+        return jda::shutdown;
+    }
 
     /**
-     * Initializes the database and database save timer for this bot
+     * Initializes the database, database save timer and event queue for this bot
+     * 
+     * @throws IOException If the save file exists but neither it nor any of its backups could be read
      */
-    public DiscordBot() {
-        //Initialize database from the given SAVE_FILE
-        try {
-            database = new ServerDatabase(SAVE_FILE);
-        } catch (FileNotFoundException ex) {
-            database = new ServerDatabase();
-        }
+    public DiscordBot() throws IOException {
+        //Initialize database from the given SAVE_FILE, and event queue so bursts of events are bounded to EVENT_QUEUE_CAPACITY
+        this(loadDatabase(SAVE_FILE), new EventQueue(EVENT_QUEUE_CAPACITY, EVENT_QUEUE_POLICY));
         
         //Initialize save timer to save the database to SAVE_FILE at a fixed rate SAVE_RATE
         databaseSaver = new Timer();
@@ -72,25 +103,130 @@ public class DiscordBot extends ListenerAdapter {
         }, SAVE_RATE, SAVE_RATE);
     }
     
-    //This method is only called when a message is recieved that begins with the COMMAND char
-    private void onCommandMessage(MessageReceivedEvent event) {
-        //Cut off command identifier and split into command and arguments
-        String cmd = event.getMessage().getContent().substring(1).toLowerCase();
+    /**
+     * Initializes this bot with a database that may be shared with other bots, such as other shards.
+     * 
+     * The database is not saved by this bot; whoever owns the database is responsible for saving it.
+     * 
+     * @param database Database to store data in
+     * @param eventQueue Queue to handle events from. Is started by this constructor.
+     */
+    public DiscordBot(ServerDatabase database, EventQueue eventQueue) {
+        this.database = database;
+        this.eventQueue = eventQueue;
+        
+        eventQueue.start();
+    }
+    
+    //Loads the database saved for the given file, or creates an empty one if nothing was saved. A file that can't be
+    //read is an error rather than an empty database, so saving over it can't rotate the real data out of its backups.
+    static ServerDatabase loadDatabase(String dataFile) throws IOException {
+        ServerDatabase database = new ServerDatabase();
+        configureSaving(database);
+        
+        List<String> files;
+        try {
+            files = database.loadAll(dataFile, ServerDatabase.LoadMode.LAZY);
+        } catch (FileNotFoundException ex) {
+            return database;
+        }
+        
+        //GuildData saved by a sharded run is moved into the data file, so the partition files are not loaded over it later
+        files.remove(dataFile);
+        if (!files.isEmpty() && database.saveDatabase(dataFile)) {
+            files.forEach(ServerDatabase::retireFile);
+        }
+        
+        //Parse the indexed records in the background, any guild touched before then is parsed on demand
+        new Thread(database::materializeAll, "DatabaseLoader").start();
+        
+        return database;
+    }
+    
+    //Applies the SAVE_ compression, fsync and backup settings to a database
+    static void configureSaving(ServerDatabase database) {
+        database.setCompression(SAVE_COMPRESSION);
+        database.setFsyncPolicy(SAVE_FSYNC_POLICY);
+        database.setBackupGenerations(SAVE_BACKUP_GENERATIONS);
+    }
+    
+    /**
+     * 
+     * @return The database this bot stores data in
+     */
+    public ServerDatabase getDatabase() {
+        return database;
+    }
+    
+    /**
+     * 
+     * @return The queue that events are handled from. Exposes queue depth and drop counters.
+     */
+    public EventQueue getEventQueue() {
+        return eventQueue;
+    }
+    
+    //Returns the settings for the guild a message was sent in, one cache lookup
+    private GuildSettings getSettings(MessageReceivedEvent event) {
+        if (event.isPrivate()) {
+            return GuildSettings.DEFAULT;
+        }
+        
+        return database.getGuildSettings(event.getGuild().getId());
+    }
+    
+    //Returns true if the author of the message has the bot commander role in the guild
+    private boolean isCommander(MessageReceivedEvent event) {
+        return event.getGuild().getRolesForUser(event.getAuthor()).stream().anyMatch((Role role) -> role.getName().equals(BOT_NAME + " Commander"));
+    }
+    
+    //This method is only called when a message is recieved that begins with the guild's command prefix
+    private void onCommandMessage(MessageReceivedEvent event, GuildSettings settings) {
+        //Cut off command prefix and split into command and arguments
+        String cmd = event.getMessage().getContent().substring(settings.getPrefix().length());
         String args = "";
         if (cmd.contains(" ")) {
             args = cmd.substring(cmd.indexOf(" ") + 1);
             cmd = cmd.substring(0, cmd.indexOf(" "));
         }
+        cmd = cmd.toLowerCase();
+        
+        if (settings.isCommandDisabled(cmd)) {
+            return;
+        }
         
         //Command checks
         if (cmd.equals("help")) {
             event.getTextChannel().sendMessage(event.getMessage().getAuthor().getAsMention() + " " + HELP_MESSAGE);
         } else if (cmd.equals("info")) {
             event.getTextChannel().sendMessage(event.getMessage().getAuthor().getAsMention() + " " + INFO_MESSAGE);
+        } else if (cmd.equals("prefix") && !args.isEmpty() && !args.contains(" ") && isCommander(event)) {
+            String prefix = args;
+            if (updateSettings(event, (GuildSettings current) -> current.withPrefix(prefix)) != null) {
+                event.getTextChannel().sendMessage(event.getMessage().getAuthor().getAsMention() + " Command prefix is now `" + prefix + "`");
+            } else {
+                event.getTextChannel().sendMessage(event.getMessage().getAuthor().getAsMention() + " Settings could not be changed");
+            }
+        } else if ((cmd.equals("disable") || cmd.equals("enable")) && !args.isEmpty() && !args.toLowerCase().equals("enable") && isCommander(event)) {
+            String command = args.toLowerCase();
+            boolean disabled = cmd.equals("disable");
+            if (updateSettings(event, (GuildSettings current) -> current.withCommandDisabled(command, disabled)) != null) {
+                event.getTextChannel().sendMessage(event.getMessage().getAuthor().getAsMention() + " Command `" + command + "` is now " + cmd + "d");
+            } else {
+                event.getTextChannel().sendMessage(event.getMessage().getAuthor().getAsMention() + " Settings could not be changed");
+            }
         }
     }
     
-    //This method is only called when a message is recieved and does not begin with the COMMAND char
+    //Updates the current settings of the guild a message was sent in. Returns the new settings, or null if it failed.
+    private GuildSettings updateSettings(MessageReceivedEvent event, UnaryOperator<GuildSettings> update) {
+        //Guilds joined before the database existed have no GuildData yet
+        database.addGuild(event.getGuild());
+        
+        return database.updateGuildSettings(event.getGuild().getId(), update);
+    }
+    
+    //This method is only called when a message is recieved and does not begin with the guild's command prefix
     private void onNonCommandMessage(MessageReceivedEvent event) {
         
     }
@@ -98,16 +234,25 @@ public class DiscordBot extends ListenerAdapter {
     /**
      * Is called by the JDA when a message has been received in any Guild
      * 
+     * The event is queued and handled on the event queue's worker thread. Non-command messages may be dropped under load.
+     * 
      * @param event
      */
     @Override
     public void onMessageReceived(MessageReceivedEvent event) {
-        //Ensure user is added to databsae
-        database.addGlobalUser(event.getAuthor());
+        GuildSettings settings = getSettings(event);
+        boolean isCommand = !event.isPrivate() && event.getMessage().getContent().startsWith(settings.getPrefix());
+        
+        eventQueue.submit(() -> handleMessageReceived(event, settings, isCommand), isCommand);
+    }
+    
+    private void handleMessageReceived(MessageReceivedEvent event, GuildSettings settings, boolean isCommand) {
+        //Ensure user is added to databsae and marked as seen
+        database.touchGlobalUser(event.getAuthor());
         
         //Dispatch event to private methds
-        if (event.getMessage().getContent().charAt(0) == COMMAND) {
-            onCommandMessage(event);
+        if (isCommand) {
+            onCommandMessage(event, settings);
         } else {
             onNonCommandMessage(event);
         }
@@ -116,10 +261,16 @@ public class DiscordBot extends ListenerAdapter {
     /**
      * Is called by the JDA when a private message has been received
      * 
+     * The event is queued and handled on the event queue's worker thread. Private messages may be dropped under load.
+     * 
      * @param event
      */
     @Override
     public void onPrivateMessageReceived(PrivateMessageReceivedEvent event) {
+        eventQueue.submit(() -> handlePrivateMessageReceived(event), false);
+    }
+    
+    private void handlePrivateMessageReceived(PrivateMessageReceivedEvent event) {
         
     }
 
@@ -128,10 +279,16 @@ public class DiscordBot extends ListenerAdapter {
      * 
      * This event is only fired once per Guild, unless the guild kicks this bot and adds them again.
      * 
+     * The event is queued and handled on the event queue's worker thread, and is never dropped.
+     * 
      * @param event
      */
     @Override
     public void onGuildJoin(GuildJoinEvent event) {
+        eventQueue.submit(() -> handleGuildJoin(event), true);
+    }
+    
+    private void handleGuildJoin(GuildJoinEvent event) {
         //Send join message
         event.getGuild().getPublicChannel().sendMessage(JOIN_MESSAGE);
         
@@ -147,10 +304,16 @@ public class DiscordBot extends ListenerAdapter {
     /**
      * Is called by the JDA when this bot has been removed from a Guild
      * 
+     * The event is queued and handled on the event queue's worker thread, and is never dropped.
+     * 
      * @param event
      */
     @Override
     public void onGuildLeave(GuildLeaveEvent event) {
+        eventQueue.submit(() -> handleGuildLeave(event), true);
+    }
+    
+    private void handleGuildLeave(GuildLeaveEvent event) {
         //Remove GuildData from database
         database.removeGuild(event.getGuild());
     }
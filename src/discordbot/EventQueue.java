@@ -0,0 +1,317 @@
+package discordbot;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded queue that sits between the JDA event thread and the handlers of a bot.
+ *
+ * Events are handled one at a time, in order, by a single worker thread. When the queue is full the configured Policy
+ * decides whether the producer waits or whether older messages are shed to make room.
+ *
+ * Events are split into two kinds: important events (commands and guild lifecycle events) which are never dropped, and
+ * sheddable events (all other messages) which may be dropped under load. Important events still queued when the queue is
+ * shut down are handled before the worker thread stops.
+ *
+ * @author austinbt
+ */
+public class EventQueue {
+
+    /**
+     * Describes what happens when an event is submitted to a full queue
+     */
+    public enum Policy {
+        /**
+         * The submitting thread waits until there is room in the queue
+         */
+        BLOCK,
+        /**
+         * The oldest sheddable event is dropped to make room. Important events wait for room if there is nothing to shed.
+         */
+        DROP_OLDEST,
+        /**
+         * Same as DROP_OLDEST, but important events are also handled before any queued sheddable events
+         */
+        PRIORITIZE
+    }
+
+    /**
+     * Is notified on the worker thread each time an event has been handled
+     */
+    public interface Listener {
+
+        /**
+         * Is called after an event's handler has returned
+         *
+         * @param latencyNanos Time from the event being submitted to its handler returning
+         * @param isImportant True if the event was submitted as important
+         */
+        void eventHandled(long latencyNanos, boolean isImportant);
+    }
+
+    private final ArrayDeque<Entry> important = new ArrayDeque<>();
+    private final ArrayDeque<Entry> sheddable = new ArrayDeque<>();
+    private final int capacity;
+    private final Policy policy;
+
+    private long nextSequence = 0;
+    private long droppedCount = 0;
+    private long handledCount = 0;
+    private int peakDepth = 0;
+
+    private Thread worker;
+    private volatile boolean running = false;
+    private boolean stopped = false;
+    private volatile Listener listener;
+
+    /**
+     * Creates a new event queue. The queue does not handle events until it has been started.
+     *
+     * @param capacity Maximum number of events that can be waiting in the queue
+     * @param policy Policy to apply when the queue is full
+     */
+    public EventQueue(int capacity, Policy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Starts the worker thread that handles queued events. Has no effect if already started or shut down.
+     */
+    public synchronized void start() {
+        if (running || stopped) {
+            return;
+        }
+
+        running = true;
+        worker = new Thread(this::run, "EventQueue");
+        worker.start();
+    }
+
+    /**
+     * Stops the worker thread. Queued important events are handled first, and this waits until they have been; queued
+     * sheddable events are dropped. Events submitted after this is called are rejected.
+     */
+    public void shutdown() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            stopped = true;
+            current = worker;
+            worker = null;
+            notifyAll();
+        }
+
+        //A handler shutting down its own queue can't wait for itself
+        if (current != null && current != Thread.currentThread()) {
+            boolean interrupted = false;
+            while (current.isAlive()) {
+                try {
+                    current.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Submits an event handler to the queue.
+     *
+     * If the submitting thread is interrupted while waiting for room, sheddable events are dropped, but important events
+     * keep waiting and the interrupt is restored once they have been queued.
+     *
+     * @param handler Handler to run on the worker thread
+     * @param isImportant True if this event must never be dropped (commands and guild lifecycle events)
+     * @return True if the event was queued, false if it was dropped or the queue has been shut down
+     */
+    public synchronized boolean submit(Runnable handler, boolean isImportant) {
+        boolean interrupted = false;
+
+        try {
+            while (getDepth() >= capacity && !stopped) {
+                if (policy != Policy.BLOCK) {
+                    if (!sheddable.isEmpty()) {
+                        sheddable.pollFirst();
+                        droppedCount++;
+                        break;
+                    } else if (!isImportant) {
+                        //Nothing older to shed, so shed this one instead
+                        droppedCount++;
+                        return false;
+                    }
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                    if (!isImportant) {
+                        droppedCount++;
+                        return false;
+                    }
+                }
+            }
+
+            if (stopped) {
+                droppedCount++;
+                return false;
+            }
+
+            Entry entry = new Entry(handler, nextSequence++, isImportant);
+            if (isImportant) {
+                important.addLast(entry);
+            } else {
+                sheddable.addLast(entry);
+            }
+
+            peakDepth = Math.max(peakDepth, getDepth());
+            notifyAll();
+
+            return true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     *
+     * @param listener Listener to notify when each event has been handled, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     *
+     * @return Number of events currently waiting to be handled
+     */
+    public synchronized int getDepth() {
+        return important.size() + sheddable.size();
+    }
+
+    /**
+     *
+     * @return Largest number of events that have been waiting at once
+     */
+    public synchronized int getPeakDepth() {
+        return peakDepth;
+    }
+
+    /**
+     *
+     * @return Number of events that have been dropped since this queue was created
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     *
+     * @return Number of events that have been handled since this queue was created
+     */
+    public synchronized long getHandledCount() {
+        return handledCount;
+    }
+
+    /**
+     *
+     * @return Maximum number of events that can be waiting in the queue
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *
+     * @return Policy applied when the queue is full
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    //Takes the next event to handle, blocking until one is available. Once stopped, only important events are taken.
+    private synchronized Entry take() throws InterruptedException {
+        while (running && important.isEmpty() && sheddable.isEmpty()) {
+            wait();
+        }
+
+        if (!running) {
+            //Shed what is left, but drain important events
+            droppedCount += sheddable.size();
+            sheddable.clear();
+
+            if (important.isEmpty()) {
+                throw new InterruptedException();
+            }
+        }
+
+        Entry entry;
+        if (sheddable.isEmpty()) {
+            entry = important.pollFirst();
+        } else if (important.isEmpty()) {
+            entry = sheddable.pollFirst();
+        } else if (policy == Policy.PRIORITIZE || important.peekFirst().sequence < sheddable.peekFirst().sequence) {
+            entry = important.pollFirst();
+        } else {
+            entry = sheddable.pollFirst();
+        }
+
+        //Wake any producers waiting for room
+        notifyAll();
+
+        return entry;
+    }
+
+    private synchronized void handled() {
+        handledCount++;
+    }
+
+    //Worker thread loop
+    private void run() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            try {
+                entry.handler.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+
+            Listener current = listener;
+            if (current != null) {
+                current.eventHandled(System.nanoTime() - entry.queuedAt, entry.isImportant);
+            }
+            handled();
+        }
+    }
+
+    private static class Entry {
+
+        private final Runnable handler;
+        private final long sequence;
+        private final boolean isImportant;
+        private final long queuedAt = System.nanoTime();
+
+        private Entry(Runnable handler, long sequence, boolean isImportant) {
+            this.handler = handler;
+            this.sequence = sequence;
+            this.isImportant = isImportant;
+        }
+    }
+
+}
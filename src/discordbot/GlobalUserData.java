@@ -11,6 +11,9 @@ import org.json.JSONObject;
 public class GlobalUserData extends ServerData {
     
     private String id;
+    private volatile long lastSeen;
+    //The lastSeen that subscribers to the database's changes were last told about. Not saved.
+    private long publishedSeen;
     
     /**
      * Constructs this data object with a given User
@@ -19,6 +22,8 @@ public class GlobalUserData extends ServerData {
      */
     public GlobalUserData(User user) {
         id = user.getId();
+        lastSeen = System.currentTimeMillis();
+        publishedSeen = lastSeen;
     }
     
     /**
@@ -40,6 +45,38 @@ public class GlobalUserData extends ServerData {
         return id;
     }
 
+    /**
+     * 
+     * @return Time this User was last seen, in milliseconds since the epoch
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Marks this User as seen now. Use 'ServerDatabase.touchGlobalUser' instead for users in a database, so that the
+     * change is published.
+     */
+    public void touch() {
+        lastSeen = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks whether lastSeen has changed by at least the given interval since it was last published, and if so marks
+     * it as published. Must be called while holding the database's lock on its GlobalUserData.
+     *
+     * @param interval Shortest time in milliseconds between two published changes
+     * @return True if the change should be published now
+     */
+    boolean markSeenPublished(long interval) {
+        if (lastSeen == publishedSeen || lastSeen - publishedSeen < interval) {
+            return false;
+        }
+
+        publishedSeen = lastSeen;
+        return true;
+    }
+
     /**
      * Saves this object's current state to a JSON
      * 
@@ -49,7 +86,8 @@ public class GlobalUserData extends ServerData {
     public JSONObject saveState() {
         JSONObject json = new JSONObject();
         
-        json.append("id", id);
+        json.put("id", id);
+        json.put("lastSeen", lastSeen);
         
         return json;
     }
@@ -63,6 +101,8 @@ public class GlobalUserData extends ServerData {
      */
     @Override
     public void loadState(JSONObject json) {
-        id = json.getString("id");
+        id = loadId(json);
+        lastSeen = json.optLong("lastSeen", 0);
+        publishedSeen = lastSeen;
     }
 }
@@ -12,12 +12,17 @@ import org.json.JSONObject;
  * Create functionality to allow control of GuildUserData objects
  * ***TODO***
  * 
+ * Methods that touch userdata are synchronized on this object, so userdata can be read while it is being changed.
+ * 
  * @author austinbt
  */
 public class GuildData extends ServerData {
 
-    private ArrayList<GuildUserData> userData = new ArrayList();
+    //Not initialized here, field initializers would run after loadState is called by the JSON constructor
+    private ArrayList<GuildUserData> userData;
     private String id;
+    private volatile GuildSettings settings;
+    private volatile ChangeStream changes;
 
     /**
      * Initializes this object from a Guild
@@ -26,6 +31,8 @@ public class GuildData extends ServerData {
      */
     public GuildData(Guild guild) {
         id = guild.getId();
+        userData = new ArrayList();
+        settings = GuildSettings.DEFAULT;
     }
 
     /**
@@ -47,13 +54,65 @@ public class GuildData extends ServerData {
         return id;
     }
     
+    /**
+     * 
+     * @return The current settings of this guild
+     */
+    public GuildSettings getSettings() {
+        return settings;
+    }
+    
+    /**
+     * Replaces the settings of this guild.
+     * 
+     * Use ServerDatabase.setGuildSettings so that the database's settings cache is updated as well.
+     * 
+     * @param settings New settings
+     */
+    void setSettings(GuildSettings settings) {
+        this.settings = settings;
+    }
+    
+    /**
+     * Sets the stream that userdata changes are published to. Is set by ServerDatabase while this guild is in it.
+     * 
+     * @param changes Stream to publish to, or null to stop publishing
+     */
+    void setChangeStream(ChangeStream changes) {
+        this.changes = changes;
+    }
+    
+    //Publishes a userdata change if this guild is in a database
+    private void publishUserChange(String userId, GuildUserData data) {
+        ChangeStream current = changes;
+        if (current != null) {
+            current.publish(DatabaseChange.Type.GUILD_USER_CHANGED, id, userId, data == null ? null : data::saveState);
+        }
+    }
+    
+    /**
+     * 
+     * @return Number of users with userdata in this guild
+     */
+    public synchronized int getUserCount() {
+        return userData.size();
+    }
+    
+    /**
+     * 
+     * @return A copy of the userdata list of this guild, in its current state
+     */
+    synchronized ArrayList<GuildUserData> copyUserData() {
+        return new ArrayList(userData);
+    }
+    
     /**
      * Retrieves userdata for this guild if it exists
      * 
      * @param userId User id to find data for
      * @return GuildUserData object for the given user. Null if user is null.
      */
-    public GuildUserData getUserData(String userId) {
+    public synchronized GuildUserData getUserData(String userId) {
         if (userId == null) {
             return null;
         }
@@ -84,7 +143,7 @@ public class GuildData extends ServerData {
      * @param userId Id of user to compare
      * @return true if userdata is present for given id, false otherwise
      */
-    public boolean hasUserData(String userId) {
+    public synchronized boolean hasUserData(String userId) {
         for (GuildUserData data : userData) {
             if (data.getId().equals(userId)) {
                 return true;
@@ -110,9 +169,10 @@ public class GuildData extends ServerData {
      * @param data Data to be added
      * @return true if successfully added, false if already present
      */
-    public boolean addUserData(GuildUserData data) {
+    public synchronized boolean addUserData(GuildUserData data) {
         if (data != null && !userData.contains(data)) {
             userData.add(data);
+            publishUserChange(data.getId(), data);
             return true;
         }
         
@@ -125,13 +185,14 @@ public class GuildData extends ServerData {
      * @param userId User id to find data for
      * @return Userdata for the given user id if it exists and has been removed. Null if data was not present, no action was taken.
      */
-    public GuildUserData removeUserData(String userId) {
+    public synchronized GuildUserData removeUserData(String userId) {
         if (!hasUserData(userId)) {
             return null;
         }
         
         GuildUserData data = getUserData(userId);
         userData.remove(data);
+        publishUserChange(userId, null);
         return data;
     }
     
@@ -151,7 +212,7 @@ public class GuildData extends ServerData {
      * @param user User to create data for and add
      * @return true if userdata was created and added, false if data for user was already present
      */
-    public boolean createUserData(User user) {
+    public synchronized boolean createUserData(User user) {
         if (hasUserData(user)) {
             return false;
         }
@@ -167,10 +228,11 @@ public class GuildData extends ServerData {
      * @return A JSONObject representation of this object
      */
     @Override
-    public JSONObject saveState() {
+    public synchronized JSONObject saveState() {
         JSONObject json = new JSONObject();
         
-        json.append("id", id);
+        json.put("id", id);
+        json.put("settings", settings.saveState());
         
         for (GuildUserData data : userData) {
             json.append("userData", data.saveState());
@@ -187,10 +249,12 @@ public class GuildData extends ServerData {
      * @param json JSONObject to load from
      */
     @Override
-    public void loadState(JSONObject json) {
-        userData.clear();
+    public synchronized void loadState(JSONObject json) {
+        userData = new ArrayList();
+        
+        id = loadId(json);
         
-        id = json.getString("id");
+        settings = json.has("settings") ? new GuildSettings(json.getJSONObject("settings")) : GuildSettings.DEFAULT;
         
         if (json.has("userData")) {
             json.getJSONArray("userData").forEach((Object t) -> {
@@ -0,0 +1,148 @@
+package discordbot;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * An immutable set of settings for a single guild. Changing a setting creates a new GuildSettings object, so a
+ * GuildSettings can be shared between threads and cached without locking.
+ *
+ * @author austinbt
+ */
+public final class GuildSettings {
+
+    /**
+     * Settings used by guilds that have not changed anything, and by private messages
+     */
+    public static final GuildSettings DEFAULT = new GuildSettings("!", Collections.emptySet(), Locale.US);
+
+    private final String prefix;
+    private final Set<String> disabledCommands;
+    private final Locale locale;
+
+    /**
+     * Creates a new set of guild settings
+     *
+     * @param prefix Prefix that commands must begin with. Must not be empty.
+     * @param disabledCommands Names of commands that are ignored in this guild
+     * @param locale Locale of this guild
+     */
+    public GuildSettings(String prefix, Set<String> disabledCommands, Locale locale) {
+        if (prefix == null || prefix.isEmpty()) {
+            throw new IllegalArgumentException("Prefix must not be empty");
+        }
+
+        this.prefix = prefix;
+        this.disabledCommands = Collections.unmodifiableSet(new HashSet(disabledCommands));
+        this.locale = locale;
+    }
+
+    /**
+     * Creates guild settings from a JSONObject representation of them. Missing settings are taken from DEFAULT.
+     *
+     * *JSON IS EXPECTED TO BE PROPER FORMAT*
+     *
+     * @param json JSONObject to load from
+     */
+    public GuildSettings(JSONObject json) {
+        this(json.optString("prefix", DEFAULT.prefix), readCommands(json.optJSONArray("disabledCommands")),
+                json.has("locale") ? Locale.forLanguageTag(json.getString("locale")) : DEFAULT.locale);
+    }
+
+    private static Set<String> readCommands(JSONArray array) {
+        HashSet<String> commands = new HashSet();
+        if (array != null) {
+            array.forEach((Object t) -> commands.add((String) t));
+        }
+
+        return commands;
+    }
+
+    /**
+     *
+     * @return Prefix that commands must begin with
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     *
+     * @return Unmodifiable set of the names of commands that are ignored in this guild
+     */
+    public Set<String> getDisabledCommands() {
+        return disabledCommands;
+    }
+
+    /**
+     *
+     * @param command Name of the command
+     * @return True if the command is ignored in this guild
+     */
+    public boolean isCommandDisabled(String command) {
+        return disabledCommands.contains(command);
+    }
+
+    /**
+     *
+     * @return Locale of this guild
+     */
+    public Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     *
+     * @param prefix New command prefix
+     * @return A copy of these settings with the given prefix
+     */
+    public GuildSettings withPrefix(String prefix) {
+        return new GuildSettings(prefix, disabledCommands, locale);
+    }
+
+    /**
+     *
+     * @param command Name of the command
+     * @param disabled True to ignore the command in this guild, false to allow it
+     * @return A copy of these settings with the command disabled or enabled
+     */
+    public GuildSettings withCommandDisabled(String command, boolean disabled) {
+        HashSet<String> commands = new HashSet(disabledCommands);
+        if (disabled) {
+            commands.add(command);
+        } else {
+            commands.remove(command);
+        }
+
+        return new GuildSettings(prefix, commands, locale);
+    }
+
+    /**
+     *
+     * @param locale New locale
+     * @return A copy of these settings with the given locale
+     */
+    public GuildSettings withLocale(Locale locale) {
+        return new GuildSettings(prefix, disabledCommands, locale);
+    }
+
+    /**
+     * Creates a JSONObject representation of these settings
+     *
+     * @return A JSONObject representation of these settings
+     */
+    public JSONObject saveState() {
+        JSONObject json = new JSONObject();
+
+        json.put("prefix", prefix);
+        json.put("disabledCommands", new JSONArray(disabledCommands));
+        json.put("locale", locale.toLanguageTag());
+
+        return json;
+    }
+
+}
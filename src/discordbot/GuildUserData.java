@@ -49,7 +49,7 @@ public class GuildUserData extends ServerData {
     public JSONObject saveState() {
         JSONObject json = new JSONObject();
         
-        json.append("id", id);
+        json.put("id", id);
         
         return json;
     }
@@ -63,7 +63,7 @@ public class GuildUserData extends ServerData {
      */
     @Override
     public void loadState(JSONObject json) {
-        id = json.getString("id");
+        id = loadId(json);
     }
     
 }
@@ -0,0 +1,581 @@
+package discordbot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.security.auth.login.LoginException;
+import net.dv8tion.jda.entities.Message;
+import net.dv8tion.jda.events.guild.GuildJoinEvent;
+import net.dv8tion.jda.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.events.message.priv.PrivateMessageReceivedEvent;
+
+/**
+ * A traffic replay and load test harness for DiscordBot. Feeds synthetic or recorded events to a bot's listener methods
+ * through local stand-ins for JDA entities, with no network connection.
+ *
+ * Reports throughput, handling latency percentiles, allocation rate and database growth. The database is saved with
+ * DiscordBot's compression, fsync and backup settings every so many events while the test is running, the same way the
+ * bot's save timer would. Events can be fed to a single bot, or to several shards run through a ShardLauncher.
+ *
+ * After the run the database is saved once more and loaded back LAZY, the way the bot starts, to measure how long it
+ * takes until events can be handled and until every record has been parsed.
+ *
+ * Recorded streams are text files with one event per line:
+ * <pre>
+ * join [guildId]
+ * leave [guildId]
+ * message [guildId] [userId] [content]
+ * private [userId] [content]
+ * </pre>
+ *
+ * @author austinbt
+ */
+public class LoadTest {
+
+    /**
+     * A single event to replay
+     */
+    public static class ReplayEvent {
+
+        /**
+         * Kinds of events that can be replayed
+         */
+        public enum Type {
+            JOIN, LEAVE, MESSAGE, PRIVATE
+        }
+
+        private final Type type;
+        private final String guildId;
+        private final String userId;
+        private final String content;
+
+        /**
+         * Creates an event to replay
+         *
+         * @param type Kind of event
+         * @param guildId Discord GuildID, null for private messages
+         * @param userId Discord UserID of the author, null for guild joins and leaves
+         * @param content Content of the message, null for guild joins and leaves
+         */
+        public ReplayEvent(Type type, String guildId, String userId, String content) {
+            this.type = type;
+            this.guildId = guildId;
+            this.userId = userId;
+            this.content = content;
+        }
+
+        /**
+         * Parses an event from one line of a recorded stream
+         *
+         * @param line Line to parse
+         * @return The parsed event
+         * @throws IllegalArgumentException If the line is not a valid event
+         */
+        public static ReplayEvent parse(String line) {
+            String[] parts = line.trim().split(" ", 4);
+            Type type = Type.valueOf(parts[0].toUpperCase());
+
+            switch (type) {
+                case JOIN:
+                case LEAVE:
+                    return new ReplayEvent(type, parts[1], null, null);
+                case MESSAGE:
+                    return new ReplayEvent(type, parts[1], parts[2], parts.length > 3 ? parts[3] : "");
+                default:
+                    String[] message = line.trim().split(" ", 3);
+                    return new ReplayEvent(type, null, message[1], message.length > 2 ? message[2] : "");
+            }
+        }
+
+        /**
+         *
+         * @return This event as one line of a recorded stream
+         */
+        @Override
+        public String toString() {
+            switch (type) {
+                case JOIN:
+                case LEAVE:
+                    return type.name().toLowerCase() + " " + guildId;
+                case MESSAGE:
+                    return "message " + guildId + " " + userId + " " + content;
+                default:
+                    return "private " + userId + " " + content;
+            }
+        }
+    }
+
+    private final int queueCapacity;
+    private final EventQueue.Policy queuePolicy;
+    private final int saveEvery;
+    private final int shardCount;
+
+    /**
+     * Creates a load test harness that feeds events to a single bot
+     *
+     * @param queueCapacity Capacity of the bot's event queue
+     * @param queuePolicy Policy of the bot's event queue
+     * @param saveEvery Number of events between database saves during the run, 0 to only save once the run is over
+     */
+    public LoadTest(int queueCapacity, EventQueue.Policy queuePolicy, int saveEvery) {
+        this(queueCapacity, queuePolicy, saveEvery, 0);
+    }
+
+    /**
+     * Creates a load test harness
+     *
+     * @param queueCapacity Capacity of each bot's event queue
+     * @param queuePolicy Policy of each bot's event queue
+     * @param saveEvery Number of events between database saves during the run, 0 to only save once the run is over
+     * @param shardCount Number of shards to run through a ShardLauncher, 0 to feed a single bot without one
+     */
+    public LoadTest(int queueCapacity, EventQueue.Policy queuePolicy, int saveEvery, int shardCount) {
+        this.queueCapacity = queueCapacity;
+        this.queuePolicy = queuePolicy;
+        this.saveEvery = saveEvery;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Runs a load test from the command line.
+     *
+     * Options: --events N, --guilds N, --users N, --commands RATE, --churn RATE, --private RATE, --seed N,
+     * --capacity N, --policy BLOCK|DROP_OLDEST|PRIORITIZE, --save-every N, --shards N, --replay FILE, --record FILE
+     *
+     * @param args Options, all optional
+     * @throws IOException If a replay file can't be read or a record file can't be written
+     * @throws LoginException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, LoginException, InterruptedException {
+        int events = 100000;
+        int guilds = 100;
+        int users = 10000;
+        double commandRate = 0.05;
+        double churnRate = 0.001;
+        double privateRate = 0.01;
+        long seed = 1;
+        int capacity = DiscordBot.EVENT_QUEUE_CAPACITY;
+        EventQueue.Policy policy = DiscordBot.EVENT_QUEUE_POLICY;
+        int saveEvery = 25000;
+        int shards = 0;
+        String replay = null;
+        String record = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--events": events = Integer.parseInt(value); break;
+                case "--guilds": guilds = Integer.parseInt(value); break;
+                case "--users": users = Integer.parseInt(value); break;
+                case "--commands": commandRate = Double.parseDouble(value); break;
+                case "--churn": churnRate = Double.parseDouble(value); break;
+                case "--private": privateRate = Double.parseDouble(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--capacity": capacity = Integer.parseInt(value); break;
+                case "--policy": policy = EventQueue.Policy.valueOf(value.toUpperCase()); break;
+                case "--save-every": saveEvery = Integer.parseInt(value); break;
+                case "--shards": shards = Integer.parseInt(value); break;
+                case "--replay": replay = value; break;
+                case "--record": record = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        List<ReplayEvent> stream = replay != null ? readStream(replay) : generate(seed, events, guilds, users, commandRate, churnRate, privateRate);
+        if (record != null) {
+            writeStream(stream, record);
+        }
+
+        new LoadTest(capacity, policy, saveEvery, shards).run(stream).print(System.out);
+    }
+
+    /**
+     * Generates a synthetic event stream. Every guild is joined first, then messages flood in from random users, with
+     * guilds occasionally leaving and joining again.
+     *
+     * @param seed Random seed, so that streams can be reproduced
+     * @param events Number of events after the initial joins
+     * @param guilds Number of guilds
+     * @param users Number of distinct users
+     * @param commandRate Fraction of guild messages that are commands
+     * @param churnRate Fraction of events that are a guild leaving, immediately followed by it joining again
+     * @param privateRate Fraction of events that are private messages
+     * @return The generated stream
+     */
+    public static List<ReplayEvent> generate(long seed, int events, int guilds, int users, double commandRate, double churnRate, double privateRate) {
+        Random random = new Random(seed);
+        ArrayList<ReplayEvent> stream = new ArrayList(events + guilds);
+        String prefix = GuildSettings.DEFAULT.getPrefix();
+
+        for (int i = 0; i < guilds; i++) {
+            stream.add(new ReplayEvent(ReplayEvent.Type.JOIN, guildId(i), null, null));
+        }
+
+        while (stream.size() < events + guilds) {
+            String guild = guildId(random.nextInt(guilds));
+            String user = Long.toString(100000000000000000L + random.nextInt(users));
+            double roll = random.nextDouble();
+
+            if (roll < churnRate) {
+                stream.add(new ReplayEvent(ReplayEvent.Type.LEAVE, guild, null, null));
+                stream.add(new ReplayEvent(ReplayEvent.Type.JOIN, guild, null, null));
+            } else if (roll < churnRate + privateRate) {
+                stream.add(new ReplayEvent(ReplayEvent.Type.PRIVATE, null, user, "hello"));
+            } else if (random.nextDouble() < commandRate) {
+                stream.add(new ReplayEvent(ReplayEvent.Type.MESSAGE, guild, user, prefix + (random.nextBoolean() ? "help" : "info")));
+            } else {
+                stream.add(new ReplayEvent(ReplayEvent.Type.MESSAGE, guild, user, "message " + random.nextInt()));
+            }
+        }
+
+        return stream;
+    }
+
+    //Spreads guild ids across shards the same way real snowflakes are
+    private static String guildId(int index) {
+        return Long.toString(((long) index << 22) + 81384788765712384L);
+    }
+
+    /**
+     * Reads a recorded event stream. Blank lines and lines starting with '#' are skipped.
+     *
+     * @param file Path to the recorded stream
+     * @return The events in the stream, in order
+     * @throws IOException
+     */
+    public static List<ReplayEvent> readStream(String file) throws IOException {
+        ArrayList<ReplayEvent> stream = new ArrayList();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.startsWith("#")) {
+                    stream.add(ReplayEvent.parse(line));
+                }
+            }
+        }
+
+        return stream;
+    }
+
+    /**
+     * Writes an event stream so it can be replayed later
+     *
+     * @param stream Events to write
+     * @param file Path to write to
+     * @throws IOException
+     */
+    public static void writeStream(List<ReplayEvent> stream, String file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (ReplayEvent event : stream) {
+                writer.println(event);
+            }
+        }
+    }
+
+    /**
+     * Feeds a stream of events to a fresh bot and database as fast as possible, and waits for every event to be handled
+     * or dropped. When running shards, each guild's events go to the shard that owns the guild and private messages go
+     * to shard 0, the same way Discord delivers them. Private messages are delivered as both events JDA fires for them.
+     *
+     * @param stream Events to feed to the bot
+     * @return Measurements taken during the run
+     * @throws IOException If the temporary save directory can't be created, or the saved database can't be loaded back
+     * @throws LoginException
+     * @throws InterruptedException
+     */
+    public Result run(List<ReplayEvent> stream) throws IOException, LoginException, InterruptedException {
+        Path directory = Files.createTempDirectory("loadtest");
+        String saveFile = directory.resolve("server.data").toString();
+
+        try {
+            return run(stream, saveFile);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private Result run(List<ReplayEvent> stream, String saveFile) throws IOException, LoginException, InterruptedException {
+        ShardLauncher launcher = null;
+        ServerDatabase database;
+        DiscordBot[] bots;
+
+        if (shardCount > 0) {
+            launcher = new ShardLauncher(shardCount, saveFile, 0);
+            database = launcher.getDatabase();
+            DiscordBot.configureSaving(database);
+            launcher.launch((int shardId, int count, DiscordBot bot) -> () -> {}, queueCapacity, queuePolicy);
+
+            bots = new DiscordBot[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                bots[i] = launcher.getBot(i);
+            }
+        } else {
+            database = new ServerDatabase();
+            DiscordBot.configureSaving(database);
+            bots = new DiscordBot[] { new DiscordBot(database, new EventQueue(queueCapacity, queuePolicy)) };
+        }
+
+        //Private messages reach the bot as two events, the same way JDA fires them, so they are submitted twice
+        int submissions = 0;
+        for (ReplayEvent event : stream) {
+            submissions += event.type == ReplayEvent.Type.PRIVATE ? 2 : 1;
+        }
+
+        //Appended to by every queue's worker thread
+        long[] latencies = new long[submissions];
+        int[] latencyCount = new int[1];
+        for (DiscordBot bot : bots) {
+            bot.getEventQueue().setListener((long latencyNanos, boolean isImportant) -> {
+                synchronized (latencies) {
+                    latencies[latencyCount[0]++] = latencyNanos;
+                }
+            });
+        }
+
+        StandIns standIns = new StandIns(bots[0].BOT_NAME);
+
+        ExecutorService saver = Executors.newSingleThreadExecutor();
+        long[] saveNanos = new long[1];
+        int[] saveCount = new int[1];
+        ShardLauncher saveLauncher = launcher;
+        Runnable save = () -> {
+            long saveStart = System.nanoTime();
+            if (saveLauncher != null) {
+                saveLauncher.save();
+            } else {
+                database.saveDatabase(saveFile);
+            }
+            saveNanos[0] = Math.max(saveNanos[0], System.nanoTime() - saveStart);
+            saveCount[0]++;
+        };
+
+        //Build every event up front so that building them is not measured
+        ArrayList<Runnable> deliveries = new ArrayList(stream.size());
+        int response = 0;
+        for (ReplayEvent event : stream) {
+            int shardId = event.guildId != null ? ServerDatabase.getShardId(event.guildId, bots.length) : 0;
+            deliveries.add(deliver(bots[shardId], standIns, event, response++));
+        }
+
+        System.gc();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < deliveries.size(); i++) {
+            deliveries.get(i).run();
+
+            if (saveEvery > 0 && (i + 1) % saveEvery == 0) {
+                saver.submit(save);
+            }
+        }
+
+        while (getFinishedCount(bots) < submissions) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        saver.shutdown();
+        saver.awaitTermination(1, TimeUnit.MINUTES);
+
+        Result result = new Result();
+        result.events = submissions;
+        for (DiscordBot bot : bots) {
+            result.handled += bot.getEventQueue().getHandledCount();
+            result.dropped += bot.getEventQueue().getDroppedCount();
+            result.peakDepth = Math.max(result.peakDepth, bot.getEventQueue().getPeakDepth());
+        }
+        result.elapsedNanos = elapsed;
+        synchronized (latencies) {
+            result.latencies = Arrays.copyOf(latencies, latencyCount[0]);
+        }
+        Arrays.sort(result.latencies);
+        result.allocatedBytes = allocated;
+        result.guilds = database.getGuildCount();
+        result.globalUsers = database.getGlobalUserCount();
+        result.saves = saveCount[0];
+        result.maxSaveNanos = saveNanos[0];
+        result.sentMessages = standIns.getSentMessages();
+
+        //Save the final state, the same way the bot does when it shuts down
+        if (launcher != null) {
+            launcher.shutdown();
+        } else {
+            bots[0].getEventQueue().shutdown();
+            database.saveDatabase(saveFile);
+        }
+        result.saveFileBytes = new File(saveFile).length();
+        for (int i = 0; i < shardCount; i++) {
+            result.saveFileBytes += new File(ServerDatabase.getPartitionFile(saveFile, i)).length();
+        }
+
+        measureStartup(saveFile, result);
+
+        return result;
+    }
+
+    //Events that every bot's queue has either handled or dropped
+    private static long getFinishedCount(DiscordBot[] bots) {
+        long finished = 0;
+        for (DiscordBot bot : bots) {
+            finished += bot.getEventQueue().getHandledCount() + bot.getEventQueue().getDroppedCount();
+        }
+
+        return finished;
+    }
+
+    //Loads the saved database back LAZY, the way DiscordBot and ShardLauncher do on startup, and then parses every record
+    private void measureStartup(String saveFile, Result result) throws IOException {
+        System.gc();
+        long start = System.nanoTime();
+
+        ServerDatabase database;
+        if (shardCount > 0) {
+            database = new ServerDatabase(shardCount);
+            database.loadGlobalUsers(saveFile, ServerDatabase.LoadMode.LAZY);
+            database.loadPartitions(saveFile, ServerDatabase.LoadMode.LAZY);
+        } else {
+            database = new ServerDatabase();
+            database.loadDatabase(saveFile, ServerDatabase.LoadMode.LAZY);
+        }
+        result.startupNanos = System.nanoTime() - start;
+        result.startupPending = database.getPendingCount();
+
+        database.materializeAll();
+        result.materializeNanos = System.nanoTime() - start;
+    }
+
+    //Builds the JDA events for a replayed event, and returns the call that delivers them to the bot. Like JDA 2.x, a private
+    //message is delivered both as a MessageReceivedEvent and as a PrivateMessageReceivedEvent.
+    private static Runnable deliver(DiscordBot bot, StandIns standIns, ReplayEvent event, int response) {
+        switch (event.type) {
+            case JOIN:
+                GuildJoinEvent join = new GuildJoinEvent(standIns.getJDA(), response, standIns.getGuild(event.guildId));
+                return () -> bot.onGuildJoin(join);
+            case LEAVE:
+                GuildLeaveEvent leave = new GuildLeaveEvent(standIns.getJDA(), response, standIns.getGuild(event.guildId));
+                return () -> bot.onGuildLeave(leave);
+            case MESSAGE:
+                MessageReceivedEvent message = new MessageReceivedEvent(standIns.getJDA(), response,
+                        standIns.createMessage(standIns.getUser(event.userId), event.guildId, event.content));
+                return () -> bot.onMessageReceived(message);
+            default:
+                Message sent = standIns.createMessage(standIns.getUser(event.userId), null, event.content);
+                MessageReceivedEvent received = new MessageReceivedEvent(standIns.getJDA(), response, sent);
+                PrivateMessageReceivedEvent privateMessage = new PrivateMessageReceivedEvent(standIns.getJDA(), response, sent);
+                return () -> {
+                    bot.onMessageReceived(received);
+                    bot.onPrivateMessageReceived(privateMessage);
+                };
+        }
+    }
+
+    //Total bytes allocated by all live threads, or -1 if the JVM can't measure it
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(allocated, 0);
+        }
+
+        return total;
+    }
+
+    /**
+     * Measurements taken during a load test run
+     */
+    public static class Result {
+
+        private int events;
+        private long handled;
+        private long dropped;
+        private int peakDepth;
+        private long elapsedNanos;
+        private long[] latencies;
+        private long allocatedBytes;
+        private int guilds;
+        private int globalUsers;
+        private int saves;
+        private long maxSaveNanos;
+        private long saveFileBytes;
+        private long sentMessages;
+        private long startupNanos;
+        private int startupPending;
+        private long materializeNanos;
+
+        /**
+         *
+         * @return Events handled per second
+         */
+        public double getThroughput() {
+            return handled / (elapsedNanos / 1e9);
+        }
+
+        /**
+         *
+         * @param percentile Percentile between 0 and 100
+         * @return Handling latency at the given percentile in nanoseconds, 0 if nothing was handled
+         */
+        public long getLatency(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+
+        /**
+         *
+         * @return Bytes allocated per second by all threads during the run, -1 if the JVM can't measure it
+         */
+        public double getAllocationRate() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * Prints a human readable report
+         *
+         * @param out Stream to print to
+         */
+        public void print(PrintStream out) {
+            out.println("**Load test**");
+            out.printf("Events:      %d submitted, %d handled, %d dropped, peak queue depth %d%n", events, handled, dropped, peakDepth);
+            out.printf("Throughput:  %.0f events/s over %.2f s%n", getThroughput(), elapsedNanos / 1e9);
+            out.printf("Latency:     p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n",
+                    getLatency(50) / 1e6, getLatency(99) / 1e6, getLatency(99.9) / 1e6, getLatency(100) / 1e6);
+            out.printf("Allocation:  %.1f MB/s (%.1f MB total, all threads)%n", getAllocationRate() / 1e6, allocatedBytes / 1e6);
+            out.printf("Database:    %d guilds, %d global users, %d bytes saved%n", guilds, globalUsers, saveFileBytes);
+            out.printf("Saves:       %d during run, slowest %.1f ms%n", saves, maxSaveNanos / 1e6);
+            out.printf("Replies:     %d messages sent%n", sentMessages);
+            out.printf("Startup:     %.1f ms until events are handled (LAZY, %d records pending), %.1f ms until every record is parsed%n",
+                    startupNanos / 1e6, startupPending, materializeNanos / 1e6);
+        }
+    }
+
+}
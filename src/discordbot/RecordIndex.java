@@ -0,0 +1,208 @@
+package discordbot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Finds the boundaries of the records in a saved database without parsing them.
+ *
+ * Only the top level object and its arrays are walked. Each array element is returned as the raw JSON text of that
+ * record, so that it can be parsed later, in parallel, or not at all. Other top level values are kept as raw JSON text.
+ *
+ * @author austinbt
+ */
+class RecordIndex {
+
+    private final String json;
+    private final HashMap<String, ArrayList<String>> records = new HashMap();
+    private final HashMap<String, String> values = new HashMap();
+
+    /**
+     * Indexes the records of a saved database
+     *
+     * @param json Text of the saved database
+     * @throws IllegalArgumentException If the text is not a JSON object
+     */
+    RecordIndex(String json) {
+        this(json, true);
+    }
+
+    private RecordIndex(String json, boolean indexRecords) {
+        this.json = json;
+
+        if (indexRecords) {
+            indexObject();
+        }
+    }
+
+    //Walks the top level object, indexing the elements of each array
+    private void indexObject() {
+        int i = skipWhitespace(0);
+        expect(i, '{');
+        i = skipWhitespace(i + 1);
+
+        while (i < json.length() && json.charAt(i) != '}') {
+            int keyEnd = skipString(i);
+            String key = json.substring(i + 1, keyEnd - 1);
+            i = skipWhitespace(keyEnd);
+            expect(i, ':');
+            i = skipWhitespace(i + 1);
+
+            if (json.charAt(i) == '[') {
+                i = indexArray(key, i);
+            } else {
+                int end = skipValue(i);
+                values.put(key, json.substring(i, end));
+                i = end;
+            }
+
+            i = skipWhitespace(i);
+            if (i < json.length() && json.charAt(i) == ',') {
+                i = skipWhitespace(i + 1);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param key Top level key of an array
+     * @return Raw JSON text of every element of the array, in order. Empty if the key is not present.
+     */
+    ArrayList<String> getRecords(String key) {
+        ArrayList<String> list = records.get(key);
+        return list == null ? new ArrayList() : list;
+    }
+
+    /**
+     *
+     * @param key Top level key of a value that is not an array
+     * @return Raw JSON text of the value, or null if the key is not present
+     */
+    String getValue(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Finds the top level "id" of a record without parsing the rest of it
+     *
+     * @param record Raw JSON text of a single record
+     * @return The id, or null if it could not be found cheaply
+     */
+    static String findId(String record) {
+        RecordIndex index = new RecordIndex(record, false);
+
+        int i = index.skipWhitespace(0);
+        if (record.charAt(i) != '{') {
+            return null;
+        }
+        i = index.skipWhitespace(i + 1);
+
+        while (i < record.length() && record.charAt(i) == '"') {
+            int keyEnd = index.skipString(i);
+            String key = record.substring(i + 1, keyEnd - 1);
+            i = index.skipWhitespace(index.skipWhitespace(keyEnd) + 1);
+
+            if (key.equals("id")) {
+                //Older saves stored the id as a single element array
+                if (record.charAt(i) == '[') {
+                    i = index.skipWhitespace(i + 1);
+                }
+                if (record.charAt(i) != '"') {
+                    return null;
+                }
+
+                String id = record.substring(i + 1, index.skipString(i) - 1);
+                return id.indexOf('\\') < 0 ? id : null;
+            }
+
+            i = index.skipWhitespace(index.skipValue(i));
+            if (record.charAt(i) == ',') {
+                i = index.skipWhitespace(i + 1);
+            }
+        }
+
+        return null;
+    }
+
+    //Records the raw text of each element of the array starting at i, returns the index after the array
+    private int indexArray(String key, int i) {
+        ArrayList<String> list = new ArrayList();
+        records.put(key, list);
+
+        i = skipWhitespace(i + 1);
+        while (json.charAt(i) != ']') {
+            int end = skipValue(i);
+            list.add(json.substring(i, end));
+
+            i = skipWhitespace(end);
+            if (json.charAt(i) == ',') {
+                i = skipWhitespace(i + 1);
+            }
+        }
+
+        return i + 1;
+    }
+
+    //Returns the index after the value starting at i
+    private int skipValue(int i) {
+        char c = json.charAt(i);
+
+        if (c == '"') {
+            return skipString(i);
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            while (i < json.length()) {
+                c = json.charAt(i);
+                if (c == '"') {
+                    i = skipString(i);
+                    continue;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return i + 1;
+                    }
+                }
+                i++;
+            }
+            throw new IllegalArgumentException("Unterminated value in database file");
+        } else {
+            //Number, boolean or null
+            while (i < json.length() && ",}] \t\r\n".indexOf(json.charAt(i)) < 0) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    //Returns the index after the string starting at i
+    private int skipString(int i) {
+        expect(i, '"');
+
+        for (i++; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+
+        throw new IllegalArgumentException("Unterminated string in database file");
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private void expect(int i, char c) {
+        if (i >= json.length() || json.charAt(i) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + i + " in database file");
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package discordbot;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
@@ -48,4 +49,17 @@ public abstract class ServerData {
     public void loadState(JSONObject json) {
         throw new UnsupportedOperationException("Not implemented");
     }
+    
+    /**
+     * Reads the Discord id from a JSON representation of data. Older saves stored the id as a single element array,
+     * which is also accepted.
+     * 
+     * @param json The JSON representation to read from
+     * @return The id
+     */
+    protected static String loadId(JSONObject json) {
+        JSONArray legacy = json.optJSONArray("id");
+        
+        return legacy != null ? legacy.getString(0) : json.getString("id");
+    }
 }
@@ -1,11 +1,40 @@
 package discordbot;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import net.dv8tion.jda.entities.Guild;
 import net.dv8tion.jda.entities.User;
 import org.json.JSONObject;
@@ -13,27 +42,309 @@ import org.json.JSONObject;
 /**
  * A simple database that stores GuildData and GlobalUserData with no duplicates
  *
+ * GuildData is split into partitions by the shard that owns each guild, so that shards sharing this database can save,
+ * load and lock their own partition without touching any other. GlobalUserData is shared by all shards and has its own
+ * lock.
+ *
+ * Loading can be EAGER, PARALLEL or LAZY. A LAZY load only indexes where each GuildData and GlobalUserData record is in
+ * the file; each record is parsed the first time its guild or user is touched, or all at once in parallel with
+ * 'materializeAll'.
+ *
+ * The GuildSettings of each guild are cached per partition, so 'getGuildSettings' never has to lock or walk the
+ * database once a guild has been looked up.
+ *
+ * Saves are crash-safe: data is written to a temporary file, optionally compressed and synced to disk, and then moved
+ * over the previous file in one step. The previous files are kept as rotated backups "[dataFile].old",
+ * "[dataFile].old.2" and so on. Compressed files are detected and decompressed automatically when loading. A file that
+ * exists but can't be read is never treated as empty: its backups are loaded instead, newest first.
+ *
+ * Every guild, guild user and global user mutation is published, in order, to a ChangeStream that subscribers can use
+ * to keep a replica or an index up to date. A global user being seen is coalesced: it is published at most once per
+ * 'setLastSeenPublishInterval' for each user, so a replica's lastSeen can trail by up to that long. Loading, clearing and lazy parsing are not mutations and are not published,
+ * so a replica should start from a file saved by 'snapshotAndSubscribe' and then apply the changes delivered to that
+ * subscription. Applying a change is idempotent, so changes that are already part of the saved file can be applied again.
+ *
  * @author austinbt
  */
 public class ServerDatabase {
 
-    private final ArrayList<GuildData> guildData = new ArrayList();
-    private final ArrayList<GlobalUserData> globalUserData = new ArrayList();
+    /**
+     * Describes how GuildData and GlobalUserData records are parsed when the database is loaded
+     */
+    public enum LoadMode {
+        /**
+         * Every record is parsed in order on the loading thread
+         */
+        EAGER,
+        /**
+         * Every record is parsed before loading returns, in parallel across all cores
+         */
+        PARALLEL,
+        /**
+         * Records are only indexed while loading, and are parsed when their guild or user is first touched
+         */
+        LAZY
+    }
+
+    /**
+     * Describes how saved files are compressed
+     */
+    public enum Compression {
+        /**
+         * Files are saved as plain JSON text
+         */
+        NONE,
+        /**
+         * Files are saved as streaming deflate compressed JSON, in gzip format
+         */
+        DEFLATE
+    }
+
+    /**
+     * Describes what is forced to disk before a save is considered complete
+     */
+    public enum FsyncPolicy {
+        /**
+         * Nothing is forced, the operating system decides when data reaches the disk
+         */
+        NEVER,
+        /**
+         * The new file's contents are forced to disk before it replaces the old file
+         */
+        FILE,
+        /**
+         * As FILE, and the directory is also forced to disk after the new file replaces the old file
+         */
+        FILE_AND_DIRECTORY
+    }
+
+    private static final int CHANGE_BUFFER_CAPACITY = 65536;
+    private static final int CHANGE_BATCH_SIZE = 1024;
+
+    private final ChangeStream changes = new ChangeStream(CHANGE_BUFFER_CAPACITY, CHANGE_BATCH_SIZE);
+    private final Partition[] partitions;
+    //Changed only while holding the lock on globalUserData, but concurrent so that snapshots can read it without the lock
+    private final ConcurrentHashMap<String, GlobalUserData> globalUserData = new ConcurrentHashMap();
+    //GlobalUserData records indexed by a LAZY load but not yet parsed, guarded by the lock on globalUserData
+    private final ConcurrentHashMap<String, String> pendingGlobalUsers = new ConcurrentHashMap();
+
+    private volatile Compression compression = Compression.NONE;
+    private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.FILE;
+    private volatile int backupGenerations = 1;
+    private volatile long loadedSequence = -1;
+    private volatile long lastSeenPublishInterval = 60 * 1000;
 
     /**
      * Creates and attempts to load the database from a given JSON data file
      *
      * @param dataFile Path to database data file
-     * @throws java.io.FileNotFoundException
+     * @throws FileNotFoundException If the file does not exist
+     * @throws IOException If the file and all of its backups could not be read
+     */
+    public ServerDatabase(String dataFile) throws IOException {
+        this(1, dataFile);
+    }
+
+    /**
+     * Creates a partitioned database and attempts to load it from a given JSON data file
+     *
+     * @param partitionCount Number of partitions, one per shard
+     * @param dataFile Path to database data file
+     * @throws FileNotFoundException If the file does not exist
+     * @throws IOException If the file and all of its backups could not be read
+     */
+    public ServerDatabase(int partitionCount, String dataFile) throws IOException {
+        this(partitionCount, dataFile, LoadMode.EAGER);
+    }
+
+    /**
+     * Creates a partitioned database and attempts to load it from a given JSON data file
+     *
+     * @param partitionCount Number of partitions, one per shard
+     * @param dataFile Path to database data file
+     * @param mode How GuildData records are parsed
+     * @throws FileNotFoundException If the file does not exist
+     * @throws IOException If the file and all of its backups could not be read
      */
-    public ServerDatabase(String dataFile) throws FileNotFoundException {
-        loadDatabase(dataFile);
+    public ServerDatabase(int partitionCount, String dataFile, LoadMode mode) throws IOException {
+        this(partitionCount);
+        loadDatabase(dataFile, mode);
     }
-    
+
     /**
      * Creates an empty database
      */
     public ServerDatabase() {
+        this(1);
+    }
+
+    /**
+     * Creates an empty partitioned database
+     *
+     * @param partitionCount Number of partitions, one per shard
+     */
+    public ServerDatabase(int partitionCount) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("Partition count must be at least 1");
+        }
+
+        partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(changes);
+        }
+    }
+
+    /**
+     * Finds the shard that owns a guild, using the same formula as Discord: (guildId >> 22) % shardCount
+     *
+     * @param guildId Discord GuildID
+     * @param shardCount Total number of shards
+     * @return The id of the shard that owns the guild
+     */
+    public static int getShardId(String guildId, int shardCount) {
+        try {
+            return (int) ((Long.parseLong(guildId) >> 22) % shardCount);
+        } catch (NumberFormatException ex) {
+            //Not a snowflake, still needs a stable owner
+            return Math.floorMod(guildId.hashCode(), shardCount);
+        }
+    }
+
+    /**
+     * Builds the path of the data file for a single partition
+     *
+     * @param dataFile Path to the database data file
+     * @param partition Partition index
+     * @return Path to the data file for the given partition
+     */
+    public static String getPartitionFile(String dataFile, int partition) {
+        return dataFile + ".shard" + partition;
+    }
+
+    /**
+     * Builds the path of a rotated backup of a data file
+     *
+     * @param dataFile Path to the data file
+     * @param generation Age of the backup, 1 being the most recent
+     * @return Path to the backup of the given generation
+     */
+    public static String getBackupFile(String dataFile, int generation) {
+        return generation == 1 ? dataFile + ".old" : dataFile + ".old." + generation;
+    }
+
+    /**
+     *
+     * @param compression How files are compressed by future saves
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     *
+     * @return How files are compressed when saved
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     *
+     * @param fsyncPolicy What future saves force to disk before completing
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     *
+     * @return What saves force to disk before completing
+     */
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     *
+     * @param backupGenerations Number of previous files to keep when saving. 0 keeps no backups.
+     */
+    public void setBackupGenerations(int backupGenerations) {
+        if (backupGenerations < 0) {
+            throw new IllegalArgumentException("Backup generations must not be negative");
+        }
+
+        this.backupGenerations = backupGenerations;
+    }
+
+    /**
+     *
+     * @return Number of previous files kept when saving
+     */
+    public int getBackupGenerations() {
+        return backupGenerations;
+    }
+
+    /**
+     *
+     * @param lastSeenPublishInterval Shortest time in milliseconds between two published changes to the same global
+     * user's lastSeen. 0 publishes every change.
+     */
+    public void setLastSeenPublishInterval(long lastSeenPublishInterval) {
+        if (lastSeenPublishInterval < 0) {
+            throw new IllegalArgumentException("Publish interval must not be negative");
+        }
+
+        this.lastSeenPublishInterval = lastSeenPublishInterval;
+    }
+
+    /**
+     *
+     * @return Shortest time in milliseconds between two published changes to the same global user's lastSeen
+     */
+    public long getLastSeenPublishInterval() {
+        return lastSeenPublishInterval;
+    }
+
+    /**
+     *
+     * @return Number of partitions in this database
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     *
+     * @param guildId Discord GuildID
+     * @return The index of the partition that holds data for the given guild
+     */
+    public int getPartition(String guildId) {
+        return getShardId(guildId, partitions.length);
+    }
+
+    /**
+     *
+     * @return Number of guilds with data in this database, including records not yet parsed
+     */
+    public int getGuildCount() {
+        int count = 0;
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                count += partition.guildData.size() + partition.pending.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     *
+     * @return Number of users with GlobalUserData in this database
+     */
+    public int getGlobalUserCount() {
+        synchronized (globalUserData) {
+            return globalUserData.size() + pendingGlobalUsers.size();
+        }
     }
 
     /**
@@ -45,13 +356,9 @@ public class ServerDatabase {
      * data exists
      */
     public GlobalUserData getGlobalUserData(String id) {
-        for (GlobalUserData data : globalUserData) {
-            if (data.getId().equals(id)) {
-                return data;
-            }
+        synchronized (globalUserData) {
+            return findGlobalUser(id);
         }
-
-        return null;
     }
 
     /**
@@ -72,15 +379,43 @@ public class ServerDatabase {
      * @return True if successfully added, false otherwise
      */
     public boolean addGlobalUser(User user) {
-        if (getGlobalUserData(user) == null) {
-            globalUserData.add(new GlobalUserData(user));
+        synchronized (globalUserData) {
+            if (findGlobalUser(user.getId()) == null) {
+                GlobalUserData data = new GlobalUserData(user);
+                globalUserData.put(data.getId(), data);
+                changes.publish(DatabaseChange.Type.GLOBAL_USER_ADDED, null, data.getId(), data::saveState);
 
-            return true;
+                return true;
+            }
         }
 
         return false;
     }
 
+    /**
+     * Creates and adds a GlobalUserData if there is not already one, and marks the user as seen now
+     *
+     * @param user User that was seen
+     * @return The GlobalUserData of the user
+     */
+    public GlobalUserData touchGlobalUser(User user) {
+        synchronized (globalUserData) {
+            GlobalUserData data = findGlobalUser(user.getId());
+            if (data == null) {
+                data = new GlobalUserData(user);
+                globalUserData.put(data.getId(), data);
+                changes.publish(DatabaseChange.Type.GLOBAL_USER_ADDED, null, data.getId(), data::saveState);
+            } else {
+                data.touch();
+                if (changes.hasSubscribers() && data.markSeenPublished(lastSeenPublishInterval)) {
+                    changes.publish(DatabaseChange.Type.GLOBAL_USER_SEEN, null, data.getId(), data::saveState);
+                }
+            }
+
+            return data;
+        }
+    }
+
     /**
      * Attempts to add a given GlobalUserData if it is not already in the
      * database
@@ -89,10 +424,19 @@ public class ServerDatabase {
      * @return True if successful, false otherwise
      */
     public boolean addGlobalUserData(GlobalUserData data) {
-        if (getGlobalUserData(data.getId()) == null) {
-            globalUserData.add(data);
+        return addGlobalUserData(data, true);
+    }
 
-            return true;
+    private boolean addGlobalUserData(GlobalUserData data, boolean publish) {
+        synchronized (globalUserData) {
+            if (findGlobalUser(data.getId()) == null) {
+                globalUserData.put(data.getId(), data);
+                if (publish) {
+                    changes.publish(DatabaseChange.Type.GLOBAL_USER_ADDED, null, data.getId(), data::saveState);
+                }
+
+                return true;
+            }
         }
 
         return false;
@@ -105,16 +449,37 @@ public class ServerDatabase {
      * @return The GlobalUserData that was removed. Null if not found
      */
     public GlobalUserData removeGlobalUserData(String id) {
-        GlobalUserData data;
-        if ((data = getGlobalUserData(id)) != null) {
-            globalUserData.remove(data);
+        synchronized (globalUserData) {
+            GlobalUserData data;
+            if ((data = findGlobalUser(id)) != null) {
+                globalUserData.remove(id);
+                changes.publish(DatabaseChange.Type.GLOBAL_USER_REMOVED, null, id, null);
 
-            return data;
+                return data;
+            }
         }
 
         return null;
     }
 
+    //Caller must hold the lock on globalUserData. Parses the pending record for the id if there is one.
+    private GlobalUserData findGlobalUser(String id) {
+        GlobalUserData data = globalUserData.get(id);
+        if (data != null) {
+            return data;
+        }
+
+        String record = pendingGlobalUsers.remove(id);
+        if (record != null) {
+            data = parseRecord(record, GlobalUserData::new);
+            if (data != null) {
+                globalUserData.put(data.getId(), data);
+            }
+        }
+
+        return data;
+    }
+
     /**
      * Attempts to retrieve GuildData for a guild with a given Discord GuildID
      *
@@ -122,13 +487,11 @@ public class ServerDatabase {
      * @return GuildData for the given Discord GuildID if it exists
      */
     public GuildData getGuildData(String id) {
-        for (GuildData data : guildData) {
-            if (data.getId().equals(id)) {
-                return data;
-            }
-        }
+        Partition partition = partitions[getPartition(id)];
 
-        return null;
+        synchronized (partition) {
+            return partition.getGuildData(id);
+        }
     }
 
     /**
@@ -150,10 +513,16 @@ public class ServerDatabase {
      * successfully added.
      */
     public boolean addGuild(Guild guild) {
-        if (getGuildData(guild) == null) {
-            guildData.add(new GuildData(guild));
+        Partition partition = partitions[getPartition(guild.getId())];
 
-            return true;
+        synchronized (partition) {
+            if (partition.getGuildData(guild.getId()) == null) {
+                GuildData data = new GuildData(guild);
+                partition.add(data);
+                changes.publish(DatabaseChange.Type.GUILD_ADDED, data.getId(), null, data::saveState);
+
+                return true;
+            }
         }
 
         return false;
@@ -167,15 +536,90 @@ public class ServerDatabase {
      * true when successfully added.
      */
     public boolean addGuildData(GuildData data) {
-        if (getGuildData(data.getId()) != null) {
-            guildData.add(data);
+        return addGuildData(data, true);
+    }
 
-            return true;
+    private boolean addGuildData(GuildData data, boolean publish) {
+        Partition partition = partitions[getPartition(data.getId())];
+
+        synchronized (partition) {
+            if (partition.getGuildData(data.getId()) == null) {
+                partition.add(data);
+                if (publish) {
+                    changes.publish(DatabaseChange.Type.GUILD_ADDED, data.getId(), null, data::saveState);
+                }
+
+                return true;
+            }
         }
 
         return false;
     }
 
+    /**
+     * Retrieves the settings of a guild. Settings are cached, so this does not lock or walk the database unless the
+     * guild has not been looked up before.
+     *
+     * @param id Discord GuildID
+     * @return Settings of the given guild. GuildSettings.DEFAULT if the guild has no data.
+     */
+    public GuildSettings getGuildSettings(String id) {
+        Partition partition = partitions[getPartition(id)];
+
+        GuildSettings settings = partition.settings.get(id);
+        if (settings != null) {
+            return settings;
+        }
+
+        synchronized (partition) {
+            GuildData data = partition.getGuildData(id);
+            settings = data == null ? GuildSettings.DEFAULT : data.getSettings();
+
+            //Guilds without data are cached too, addGuild replaces the entry
+            partition.settings.put(id, settings);
+            return settings;
+        }
+    }
+
+    /**
+     * Replaces the settings of a guild and its cached settings
+     *
+     * @param id Discord GuildID
+     * @param settings New settings
+     * @return True if the settings were replaced, false if the guild has no data
+     */
+    public boolean setGuildSettings(String id, GuildSettings settings) {
+        return updateGuildSettings(id, (GuildSettings current) -> settings) != null;
+    }
+
+    /**
+     * Replaces the settings of a guild with an update of its current settings, and its cached settings. The guild's
+     * partition is locked from reading the current settings to storing the new ones, so concurrent updates are never
+     * lost.
+     *
+     * @param id Discord GuildID
+     * @param update Builds the new settings from the current settings. Is called while the partition is locked, so it
+     * must not touch this database.
+     * @return The new settings, or null if the guild has no data
+     */
+    public GuildSettings updateGuildSettings(String id, UnaryOperator<GuildSettings> update) {
+        Partition partition = partitions[getPartition(id)];
+
+        synchronized (partition) {
+            GuildData data = partition.getGuildData(id);
+            if (data == null) {
+                return null;
+            }
+
+            GuildSettings settings = update.apply(data.getSettings());
+            data.setSettings(settings);
+            partition.settings.put(id, settings);
+            changes.publish(DatabaseChange.Type.GUILD_CHANGED, id, null, settings::saveState);
+
+            return settings;
+        }
+    }
+
     /**
      * Attempts to remove data for a given guild.
      *
@@ -183,10 +627,15 @@ public class ServerDatabase {
      * @return The data that was removed if it exists. Null otherwise.
      */
     public GuildData removeGuild(String id) {
-        GuildData data;
-        if ((data = getGuildData(id)) != null) {
-            guildData.remove(data);
-            return data;
+        Partition partition = partitions[getPartition(id)];
+
+        synchronized (partition) {
+            GuildData data;
+            if ((data = partition.getGuildData(id)) != null) {
+                partition.remove(data);
+                changes.publish(DatabaseChange.Type.GUILD_REMOVED, id, null, null);
+                return data;
+            }
         }
 
         return null;
@@ -194,7 +643,7 @@ public class ServerDatabase {
 
     /**
      * Attempts to remove GuildData associated with the given Guild
-     * 
+     *
      * @param guild Guild to match to data
      * @return GuildData of the associated Guild if it was removed, null if it did not exist
      */
@@ -207,85 +656,845 @@ public class ServerDatabase {
      * All data is cleared before loading.
      *
      * @param dataFile Path to file to be loaded from
-     * @throws java.io.FileNotFoundException
+     * @throws FileNotFoundException If the file does not exist
+     * @throws IOException If the file and all of its backups could not be read
+     */
+    public void loadDatabase(String dataFile) throws IOException {
+        loadDatabase(dataFile, LoadMode.EAGER);
+    }
+
+    /**
+     * Loads data into this object from a JSON string read from the given file.
+     * All data is cleared before loading.
+     *
+     * @param dataFile Path to file to be loaded from
+     * @param mode How GuildData records are parsed
+     * @throws FileNotFoundException If the file does not exist
+     * @throws IOException If the file and all of its backups could not be read
+     */
+    public void loadDatabase(String dataFile, LoadMode mode) throws IOException {
+        RecordIndex index = readIndex(dataFile);
+
+        clear();
+
+        //Load data from indexed records
+        loadGuilds(index.getRecords("guildData"), mode);
+        loadGlobalUsers(index.getRecords("globalUserData"), mode);
+
+        loadedSequence = readSequence(index);
+    }
+
+    //Reads the change sequence saved by 'snapshotAndSubscribe', -1 if there is none
+    private static long readSequence(RecordIndex index) {
+        String sequence = index.getValue("sequence");
+        try {
+            return sequence == null ? -1 : Long.parseLong(sequence.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Loads everything saved for a data file, whichever layout it was saved in: the whole database in the data file,
+     * GuildData in partition files saved with 'savePartition' and GlobalUserData in the data file, or a mix of both
+     * left by switching between running with and without shards. All data is cleared before loading.
+     *
+     * Saving GlobalUserData with 'saveGlobalUsers' leaves no GuildData in the data file, so any GuildData in it was
+     * saved after the partition files were. It replaces partition GuildData with the same id.
+     *
+     * @param dataFile Path to the main database data file
+     * @param mode How records are parsed
+     * @return Every file GuildData was loaded from: the data file first if it held any, then every partition file
+     * @throws FileNotFoundException If neither the data file nor any partition file exists
+     * @throws IOException If a file and all of its backups could not be read
      */
-    public void loadDatabase(String dataFile) throws FileNotFoundException {
+    public List<String> loadAll(String dataFile, LoadMode mode) throws IOException {
+        List<String> partitionFiles = findPartitionFiles(dataFile);
+
+        //Read every file before clearing anything
+        RecordIndex main = null;
+        try {
+            main = readIndex(dataFile);
+        } catch (FileNotFoundException ex) {
+            if (partitionFiles.isEmpty()) {
+                throw ex;
+            }
+        }
+        ArrayList<RecordIndex> indexes = new ArrayList();
+        for (String file : partitionFiles) {
+            indexes.add(readIndex(file));
+        }
+
         clear();
 
-        //Load JSON from file
-        String jsonString = "";
-        Scanner scan = new Scanner(new File(dataFile));
-        while (scan.hasNextLine()) {
-            jsonString += scan.nextLine();
+        ArrayList<String> loaded = new ArrayList();
+        if (main != null) {
+            //Loaded first, so that it wins over the partition files
+            loadGuilds(main.getRecords("guildData"), mode);
+            loadGlobalUsers(main.getRecords("globalUserData"), mode);
+            if (!main.getRecords("guildData").isEmpty()) {
+                loaded.add(dataFile);
+            }
+        }
+        loadedSequence = main != null ? readSequence(main) : -1;
+
+        for (RecordIndex index : indexes) {
+            loadGuilds(index.getRecords("guildData"), mode);
+        }
+        loaded.addAll(partitionFiles);
+
+        return loaded;
+    }
+
+    /**
+     * Moves a file that will not be written again to its most recent backup, "[file].old", so that it is not loaded
+     * again but can still be recovered. Errors are logged.
+     *
+     * @param file Path to the file
+     */
+    public static void retireFile(String file) {
+        try {
+            Files.move(Paths.get(file), Paths.get(getBackupFile(file, 1)), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Gives the sequence saved with the file last loaded by 'loadDatabase'. Changes from the subscription that saved the
+     * file should be applied from this sequence on.
+     *
+     * Sequences restart every time the bot process starts, so this is only meaningful for changes published by the
+     * same process that saved the file.
+     *
+     * @return Sequence of the first change that is not guaranteed to be part of the loaded file, -1 if the file was not
+     * saved by 'snapshotAndSubscribe'
+     */
+    public long getLoadedSequence() {
+        return loadedSequence;
+    }
+
+    /**
+     * Loads the GuildData of every partition from the partition files saved for a data file with 'savePartition'.
+     * GuildData is cleared once before loading, GlobalUserData is not touched.
+     *
+     * Every partition file found is loaded, whatever partition count it was saved with, and each guild is added to the
+     * partition that owns it in this database. Changing the shard count therefore loses no data.
+     *
+     * @param dataFile Path to the main database data file
+     * @param mode How GuildData records are parsed
+     * @return The partition files that were loaded
+     * @throws FileNotFoundException If a file does not exist
+     * @throws IOException If a file and all of its backups could not be read
+     * @see #findPartitionFiles(java.lang.String)
+     */
+    public List<String> loadPartitions(String dataFile, LoadMode mode) throws IOException {
+        List<String> files = findPartitionFiles(dataFile);
+
+        //Read every file before clearing anything
+        ArrayList<RecordIndex> indexes = new ArrayList();
+        for (String file : files) {
+            indexes.add(readIndex(file));
+        }
+
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                partition.clear();
+            }
+        }
+
+        for (RecordIndex index : indexes) {
+            loadGuilds(index.getRecords("guildData"), mode);
+        }
+
+        return files;
+    }
+
+    /**
+     * Finds every partition file saved for a data file, by a database with any partition count. Backups of partition
+     * files are not included.
+     *
+     * @param dataFile Path to the main database data file
+     * @return Paths to the partition files, ordered by partition index
+     */
+    public static List<String> findPartitionFiles(String dataFile) {
+        Path file = Paths.get(dataFile).toAbsolutePath();
+        String prefix = file.getFileName() + ".shard";
+        TreeMap<Integer, String> files = new TreeMap();
+
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(file.getParent(), prefix + "*")) {
+            for (Path path : directory) {
+                String suffix = path.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.length() < 10 && suffix.chars().allMatch(Character::isDigit)) {
+                    files.put(Integer.parseInt(suffix), getPartitionFile(dataFile, Integer.parseInt(suffix)));
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
-        scan.close();
 
-        //Load data from JSON
-        JSONObject json = new JSONObject(jsonString);
+        return new ArrayList(files.values());
+    }
+
+    /**
+     * Loads all GlobalUserData from a JSON string read from the given file. GuildData is ignored.
+     * GlobalUserData is cleared before loading.
+     *
+     * @param dataFile Path to file to be loaded from
+     * @throws FileNotFoundException If the file does not exist
+     * @throws IOException If the file and all of its backups could not be read
+     */
+    public void loadGlobalUsers(String dataFile) throws IOException {
+        loadGlobalUsers(dataFile, LoadMode.PARALLEL);
+    }
+
+    /**
+     * Loads all GlobalUserData from a JSON string read from the given file. GuildData is ignored.
+     * GlobalUserData is cleared before loading.
+     *
+     * @param dataFile Path to file to be loaded from
+     * @param mode How GlobalUserData records are parsed
+     * @throws FileNotFoundException If the file does not exist
+     * @throws IOException If the file and all of its backups could not be read
+     */
+    public void loadGlobalUsers(String dataFile, LoadMode mode) throws IOException {
+        RecordIndex index = readIndex(dataFile);
+
+        synchronized (globalUserData) {
+            globalUserData.clear();
+            pendingGlobalUsers.clear();
+        }
+
+        loadGlobalUsers(index.getRecords("globalUserData"), mode);
+    }
+
+    private void loadGuilds(List<String> records, LoadMode mode) {
+        if (mode != LoadMode.LAZY) {
+            parseRecords(records, mode, GuildData::new).forEach((GuildData data) -> addGuildData(data, false));
+            return;
+        }
+
+        for (String record : records) {
+            String id = RecordIndex.findId(record);
+            if (id == null) {
+                //Can't be indexed cheaply, so parse it now
+                GuildData data = parseRecord(record, GuildData::new);
+                if (data != null) {
+                    addGuildData(data, false);
+                }
+                continue;
+            }
+
+            Partition partition = partitions[getPartition(id)];
+            synchronized (partition) {
+                partition.addPending(id, record);
+            }
+        }
+    }
+
+    private void loadGlobalUsers(List<String> records, LoadMode mode) {
+        if (mode != LoadMode.LAZY) {
+            parseRecords(records, mode, GlobalUserData::new).forEach((GlobalUserData data) -> addGlobalUserData(data, false));
+            return;
+        }
+
+        for (String record : records) {
+            String id = RecordIndex.findId(record);
+            if (id == null) {
+                //Can't be indexed cheaply, so parse it now
+                GlobalUserData data = parseRecord(record, GlobalUserData::new);
+                if (data != null) {
+                    addGlobalUserData(data, false);
+                }
+                continue;
+            }
+
+            synchronized (globalUserData) {
+                if (!globalUserData.containsKey(id)) {
+                    pendingGlobalUsers.putIfAbsent(id, record);
+                }
+            }
+        }
+    }
+
+    //Parses raw records in order, in parallel unless mode is EAGER. Records that can't be read are skipped.
+    private static <T> List<T> parseRecords(List<String> records, LoadMode mode, Function<JSONObject, T> constructor) {
+        return (mode == LoadMode.EAGER ? records.stream() : records.parallelStream())
+                .map((String record) -> parseRecord(record, constructor))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    //Parses a single raw record. If it can't be read it is logged and null is returned, so it can't stop other records
+    //from loading. A skipped record is not saved again, but is still in the rotated backups of the file it came from.
+    private static <T> T parseRecord(String record, Function<JSONObject, T> constructor) {
+        try {
+            return constructor.apply(new JSONObject(record));
+        } catch (RuntimeException ex) {
+            System.err.println("Skipped unreadable database record: " + (record.length() > 200 ? record.substring(0, 200) + "..." : record));
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Parses every GuildData and GlobalUserData record that has not yet been touched since a LAZY load, in parallel
+     * across all cores.
+     *
+     * Partitions and GlobalUserData are only locked while collecting and inserting records, never while parsing.
+     */
+    public void materializeAll() {
+        ArrayList<Map.Entry<String, String>> records = new ArrayList();
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                for (Map.Entry<String, String> entry : partition.pending.entrySet()) {
+                    records.add(new AbstractMap.SimpleImmutableEntry(entry));
+                }
+            }
+        }
+
+        //Unreadable records are logged and parsed as null, so they are dropped below like any other record
+        List<GuildData> parsed = records.parallelStream()
+                .map((Map.Entry<String, String> record) -> parseRecord(record.getValue(), GuildData::new))
+                .collect(Collectors.toList());
+
+        for (int i = 0; i < records.size(); i++) {
+            String id = records.get(i).getKey();
+            Partition partition = partitions[getPartition(id)];
+            synchronized (partition) {
+                //Skip records that were touched, removed or reloaded while parsing
+                if (records.get(i).getValue().equals(partition.pending.get(id))) {
+                    partition.pending.remove(id);
+                    if (parsed.get(i) != null) {
+                        partition.add(parsed.get(i));
+                    }
+                }
+            }
+        }
+
+        ArrayList<Map.Entry<String, String>> userRecords = new ArrayList();
+        synchronized (globalUserData) {
+            for (Map.Entry<String, String> entry : pendingGlobalUsers.entrySet()) {
+                userRecords.add(new AbstractMap.SimpleImmutableEntry(entry));
+            }
+        }
+
+        List<GlobalUserData> parsedUsers = userRecords.parallelStream()
+                .map((Map.Entry<String, String> record) -> parseRecord(record.getValue(), GlobalUserData::new))
+                .collect(Collectors.toList());
+
+        synchronized (globalUserData) {
+            for (int i = 0; i < userRecords.size(); i++) {
+                String id = userRecords.get(i).getKey();
+                if (userRecords.get(i).getValue().equals(pendingGlobalUsers.get(id))) {
+                    pendingGlobalUsers.remove(id);
+                    if (parsedUsers.get(i) != null) {
+                        globalUserData.put(parsedUsers.get(i).getId(), parsedUsers.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @return Number of GuildData and GlobalUserData records that have been indexed but not yet parsed
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                count += partition.pending.size();
+            }
+        }
+        synchronized (globalUserData) {
+            count += pendingGlobalUsers.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Subscribes to the changes made to this database from now on. Changes are delivered in batches on a thread owned
+     * by the subscription, and publishing them never waits for subscribers.
+     *
+     * @param subscriber Subscriber to deliver changes to, such as a ChangeSink
+     * @return The subscription, used to close it
+     */
+    public ChangeStream.Subscription subscribe(ChangeStream.Subscriber subscriber) {
+        return changes.subscribe(subscriber);
+    }
+
+    /**
+     * Applies a change published by another database to this one, so that this database can be kept as a replica.
+     * Applied changes are published again to this database's own subscribers.
+     *
+     * An added guild or global user replaces any existing record with the same id, so replaying changes that are already
+     * part of the replica's state leaves it in the same state as the database that published them.
+     *
+     * @param change Change to apply
+     */
+    public void applyChange(DatabaseChange change) {
+        switch (change.getType()) {
+            case GUILD_ADDED:
+                putGuildData(new GuildData(change.getData()));
+                break;
+            case GUILD_REMOVED:
+                removeGuild(change.getGuildId());
+                break;
+            case GUILD_CHANGED:
+                setGuildSettings(change.getGuildId(), new GuildSettings(change.getData()));
+                break;
+            case GUILD_USER_CHANGED:
+                GuildData guild = getGuildData(change.getGuildId());
+                if (guild != null) {
+                    guild.removeUserData(change.getUserId());
+                    if (change.getData() != null) {
+                        guild.addUserData(new GuildUserData(change.getData()));
+                    }
+                }
+                break;
+            case GLOBAL_USER_ADDED:
+            case GLOBAL_USER_SEEN:
+                putGlobalUserData(new GlobalUserData(change.getData()), change.getType());
+                break;
+            case GLOBAL_USER_REMOVED:
+                removeGlobalUserData(change.getUserId());
+                break;
+        }
+    }
+
+    //Adds or replaces GuildData, and publishes it as added
+    private void putGuildData(GuildData data) {
+        Partition partition = partitions[getPartition(data.getId())];
+
+        synchronized (partition) {
+            partition.put(data);
+            changes.publish(DatabaseChange.Type.GUILD_ADDED, data.getId(), null, data::saveState);
+        }
+    }
+
+    //Adds or replaces GlobalUserData, and publishes it as the given kind of change
+    private void putGlobalUserData(GlobalUserData data, DatabaseChange.Type type) {
+        synchronized (globalUserData) {
+            pendingGlobalUsers.remove(data.getId());
+            globalUserData.put(data.getId(), data);
+            changes.publish(type, null, data.getId(), data::saveState);
+        }
+    }
+
+    /**
+     * Subscribes to the changes made to this database from now on, and then saves the whole database to a file that a
+     * replica can be loaded from. The file records the sequence of the first change delivered to the subscription, see
+     * 'getLoadedSequence'.
+     *
+     * Changes made while the file is being saved may be both part of the file and delivered to the subscriber. They can
+     * safely be applied again with 'applyChange'.
+     *
+     * @param dataFile The path to the file to be saved
+     * @param subscriber Subscriber to deliver changes to, such as a ChangeSink
+     * @return The subscription, used to close it
+     * @throws IOException If the file could not be saved, in which case the subscription is closed
+     */
+    public ChangeStream.Subscription snapshotAndSubscribe(String dataFile, ChangeStream.Subscriber subscriber) throws IOException {
+        ChangeStream.Subscription subscription = changes.subscribe(subscriber);
+
+        if (!saveDatabase(dataFile, subscription.getStartSequence())) {
+            subscription.close();
+            throw new IOException(dataFile + " could not be saved");
+        }
+
+        return subscription;
+    }
+
+    /**
+     * Takes a snapshot of this database to run aggregate queries on. The snapshot holds copies, so later changes to the
+     * database are never seen through it.
+     *
+     * No partition or GlobalUserData lock is taken, so handling events is never blocked by a snapshot, however large the
+     * database is. Each guild and user is copied as it was at some point while the snapshot was taken; guilds and users
+     * added or removed meanwhile may or may not be included. Records that have not been parsed since a LAZY load are
+     * parsed for the snapshot, in parallel, but are not kept parsed in the database; call 'materializeAll' first to
+     * parse them only once for many snapshots.
+     *
+     * @return A snapshot of the current contents of this database
+     */
+    public DatabaseSnapshot snapshot() {
+        //Pending records are read before parsed ones. A record parsed meanwhile is then seen at least once, and if it is
+        //seen twice the parsed copy replaces the pending one.
+        ArrayList<String> records = new ArrayList();
+        for (Partition partition : partitions) {
+            records.addAll(partition.pending.values());
+        }
+        ArrayList<String> userRecords = new ArrayList(pendingGlobalUsers.values());
 
-        if (json.has("guildData")) {
-            json.getJSONArray("guildData").forEach((Object t) -> {
-                JSONObject data = (JSONObject) t;
-                addGuildData(new GuildData(json));
-            });
+        HashMap<String, DatabaseSnapshot.GuildEntry> guilds = new HashMap();
+        //Nothing else can see these GuildData, so they can be copied right away
+        for (GuildData data : parseRecords(records, LoadMode.PARALLEL, GuildData::new)) {
+            guilds.put(data.getId(), new DatabaseSnapshot.GuildEntry(data));
+        }
+        for (Partition partition : partitions) {
+            for (GuildData data : partition.guildData.values()) {
+                guilds.put(data.getId(), new DatabaseSnapshot.GuildEntry(data));
+            }
         }
 
-        if (json.has("globalUserData")) {
-            json.getJSONArray("globalUserData").forEach((Object t) -> {
-                JSONObject data = (JSONObject) t;
-                addGlobalUserData(new GlobalUserData(data));
-            });
+        HashMap<String, DatabaseSnapshot.GlobalUserEntry> users = new HashMap();
+        for (GlobalUserData data : parseRecords(userRecords, LoadMode.PARALLEL, GlobalUserData::new)) {
+            users.put(data.getId(), new DatabaseSnapshot.GlobalUserEntry(data));
         }
+        for (GlobalUserData data : globalUserData.values()) {
+            users.put(data.getId(), new DatabaseSnapshot.GlobalUserEntry(data));
+        }
+
+        return new DatabaseSnapshot(new ArrayList(guilds.values()), new ArrayList(users.values()));
     }
 
     /**
      * Clears the contents this database
      */
     public void clear() {
-        guildData.clear();
-        globalUserData.clear();
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                partition.clear();
+            }
+        }
+
+        synchronized (globalUserData) {
+            globalUserData.clear();
+            pendingGlobalUsers.clear();
+        }
     }
 
     /**
      * Saves a JSON representation of the database in it's current state to a
-     * specified file. If the file already exists, it will be renamed to
-     * "[dataFile].old".
+     * specified file. If the file already exists, it will be kept as the most
+     * recent backup, "[dataFile].old".
+     *
+     * Partitions are locked one at a time, never all at once.
      *
      * @param dataFile The path to the file to be saved
+     * @return True if the file was saved, false if it could not be written
      */
-    public void saveDatabase(String dataFile) {
+    public boolean saveDatabase(String dataFile) {
+        return saveDatabase(dataFile, -1);
+    }
+
+    //Saves the whole database, with the given change sequence if it is not -1
+    private boolean saveDatabase(String dataFile, long sequence) {
         JSONObject json = new JSONObject();
+        if (sequence >= 0) {
+            json.put("sequence", sequence);
+        }
 
         //Build JSON
-        for (GuildData data : guildData) {
-            json.append("guildData", data);
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                partition.appendTo(json);
+            }
         }
-        for (GlobalUserData data : globalUserData) {
-            json.append("globalUserData", data);
+        appendGlobalUsers(json);
+
+        return writeJson(json, dataFile);
+    }
+
+    /**
+     * Saves a JSON representation of a single partition's GuildData to a specified file. If the file already exists,
+     * it will be kept as the most recent backup, "[dataFile].old".
+     *
+     * Only the given partition is locked.
+     *
+     * @param partition Index of the partition to save
+     * @param dataFile The path to the file to be saved
+     * @return True if the file was saved, false if it could not be written
+     */
+    public boolean savePartition(int partition, String dataFile) {
+        JSONObject json = new JSONObject();
+
+        synchronized (partitions[partition]) {
+            partitions[partition].appendTo(json);
         }
 
+        return writeJson(json, dataFile);
+    }
+
+    /**
+     * Saves a JSON representation of all GlobalUserData to a specified file. If the file already exists, it will be
+     * kept as the most recent backup, "[dataFile].old".
+     *
+     * @param dataFile The path to the file to be saved
+     * @return True if the file was saved, false if it could not be written
+     */
+    public boolean saveGlobalUsers(String dataFile) {
+        JSONObject json = new JSONObject();
+
+        appendGlobalUsers(json);
+
+        return writeJson(json, dataFile);
+    }
+
+    private void appendGlobalUsers(JSONObject json) {
+        synchronized (globalUserData) {
+            for (GlobalUserData data : globalUserData.values()) {
+                json.append("globalUserData", data.saveState());
+            }
+            appendPending(json, "globalUserData", pendingGlobalUsers);
+        }
+    }
+
+    //Appends raw pending records to a JSON array. A record that can't be read is dropped here, the same as when it is
+    //parsed, so it can't fail every save.
+    private static void appendPending(JSONObject json, String key, Map<String, String> pending) {
+        Iterator<String> records = pending.values().iterator();
+        while (records.hasNext()) {
+            JSONObject record = parseRecord(records.next(), (JSONObject parsed) -> parsed);
+            if (record != null) {
+                json.append(key, record);
+            } else {
+                records.remove();
+            }
+        }
+    }
+
+    //Reads and indexes a data file. If it exists but can't be read, its backups are tried from newest to oldest.
+    private static RecordIndex readIndex(String dataFile) throws IOException {
         try {
-            //Backup current file if it exists
-            File file = new File(dataFile);
-            if (file.exists()) {
-                File moveTo = new File(dataFile + ".old");
-                if (moveTo.exists()) {
-                    moveTo.delete();
+            return readFile(dataFile);
+        } catch (FileNotFoundException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            for (int generation = 1; Files.exists(Paths.get(getBackupFile(dataFile, generation))); generation++) {
+                String backup = getBackupFile(dataFile, generation);
+                try {
+                    RecordIndex index = readFile(backup);
+                    System.err.println(dataFile + " could not be read, loaded " + backup + " instead");
+                    ex.printStackTrace();
+                    return index;
+                } catch (IOException backupEx) {
+                    ex.addSuppressed(backupEx);
                 }
+            }
+
+            throw ex;
+        }
+    }
+
+    //Reads the whole file, decompressing it if needed, and indexes its records
+    private static RecordIndex readFile(String dataFile) throws IOException {
+        String text;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(dataFile)))) {
+            //Compressed files start with the gzip magic number, JSON text never does
+            in.mark(2);
+            boolean compressed = in.read() == 0x1f && in.read() == 0x8b;
+            in.reset();
 
-                file.renameTo(moveTo);
+            InputStream data = compressed ? new GZIPInputStream(in) : in;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
             }
-            file = new File(dataFile);
 
-            //Save to file
-            PrintWriter writer = new PrintWriter(file);
+            text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            throw new FileNotFoundException(dataFile);
+        }
 
-            writer.println(json.toString());
+        try {
+            return new RecordIndex(text);
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException ex) {
+            throw new IOException(dataFile + " is not a valid database file", ex);
+        }
+    }
+
+    //Writes json to a temporary file, then rotates backups and moves it over dataFile so dataFile is always complete.
+    //Returns false if anything failed, in which case dataFile is left as it was.
+    private boolean writeJson(JSONObject json, String dataFile) {
+        Path file = Paths.get(dataFile).toAbsolutePath();
+        Path directory = file.getParent();
+        Path temp = null;
+
+        try {
+            //Created like any other new file, so it gets the default permissions rather than a temporary file's
+            temp = directory.resolve(file.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+
+            //Save to temporary file
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    OutputStream out = Channels.newOutputStream(channel);
+                    OutputStream stream = compression == Compression.DEFLATE ? new GZIPOutputStream(out, 64 * 1024) : out;
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024)) {
+                json.write(writer);
+                writer.write(System.lineSeparator());
+                writer.flush();
+                if (stream instanceof GZIPOutputStream) {
+                    ((GZIPOutputStream) stream).finish();
+                }
 
-            writer.close();
+                if (fsyncPolicy != FsyncPolicy.NEVER) {
+                    channel.force(true);
+                }
+            }
+
+            //Keep the permissions of the file being replaced
+            if (Files.exists(file)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+                } catch (UnsupportedOperationException ex) {
+                    //Not a POSIX file system, permissions are inherited from the directory
+                }
+            }
+
+            rotateBackups(file);
+
+            //Replace current file in one step
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+
+            if (fsyncPolicy == FsyncPolicy.FILE_AND_DIRECTORY) {
+                syncDirectory(directory);
+            }
+
+            return true;
         } catch (IOException ex) {
             ex.printStackTrace();
+            return false;
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    //Shifts every backup of file back one generation and keeps the current file as the newest backup
+    private void rotateBackups(Path file) throws IOException {
+        int generations = backupGenerations;
+        if (generations == 0 || !Files.exists(file)) {
+            return;
+        }
+
+        for (int i = generations - 1; i >= 1; i--) {
+            Path from = Paths.get(getBackupFile(file.toString(), i));
+            if (Files.exists(from)) {
+                Files.move(from, Paths.get(getBackupFile(file.toString(), i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        //The current file stays in place until the new one replaces it, so link or copy it instead of moving it
+        Path newest = Paths.get(getBackupFile(file.toString(), 1));
+        Files.deleteIfExists(newest);
+        try {
+            Files.createLink(newest, file);
+        } catch (IOException | UnsupportedOperationException ex) {
+            Files.copy(file, newest, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //Forces a directory entry change to disk. Not all platforms allow this, in which case it is skipped.
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            //Directories can't be opened for syncing on this platform
+        }
+    }
+
+    /**
+     * The GuildData of all guilds owned by a single shard. Instances are used as the lock for their own contents.
+     *
+     * GuildData is kept by id. Records that have been indexed by a LAZY load but not yet parsed are kept as raw JSON in
+     * 'pending'. Both are only changed while holding the lock, but are concurrent maps so that snapshots can read them
+     * without it.
+     * The settings of every guild in 'guildData' are mirrored in 'settings', which can be read without the lock.
+     * Every guild in 'guildData' publishes its userdata changes to 'changes'.
+     */
+    private static class Partition {
+
+        private final ChangeStream changes;
+
+        private final ConcurrentHashMap<String, GuildData> guildData = new ConcurrentHashMap();
+        private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap();
+        private final ConcurrentHashMap<String, GuildSettings> settings = new ConcurrentHashMap();
+
+        private Partition(ChangeStream changes) {
+            this.changes = changes;
+        }
+
+        //Caller must hold the lock on this partition. Parses the pending record for the id if there is one.
+        private GuildData getGuildData(String id) {
+            GuildData data = guildData.get(id);
+            if (data != null) {
+                return data;
+            }
+
+            String record = pending.remove(id);
+            if (record != null) {
+                data = parseRecord(record, GuildData::new);
+                if (data != null) {
+                    add(data);
+                }
+            }
+
+            return data;
+        }
+
+        //Caller must hold the lock on this partition
+        private void add(GuildData data) {
+            guildData.put(data.getId(), data);
+            settings.put(data.getId(), data.getSettings());
+            data.setChangeStream(changes);
         }
+
+        //Caller must hold the lock on this partition. Replaces any GuildData or pending record with the same id.
+        private void put(GuildData data) {
+            GuildData old = guildData.get(data.getId());
+            if (old != null) {
+                old.setChangeStream(null);
+            }
+            pending.remove(data.getId());
+            add(data);
+        }
+
+        //Caller must hold the lock on this partition
+        private void remove(GuildData data) {
+            guildData.remove(data.getId());
+            settings.remove(data.getId());
+            data.setChangeStream(null);
+        }
+
+        //Caller must hold the lock on this partition
+        private void addPending(String id, String record) {
+            if (!guildData.containsKey(id)) {
+                pending.putIfAbsent(id, record);
+            }
+        }
+
+        //Caller must hold the lock on this partition
+        private void clear() {
+            for (GuildData data : guildData.values()) {
+                data.setChangeStream(null);
+            }
+            guildData.clear();
+            pending.clear();
+            settings.clear();
+        }
+
+        //Caller must hold the lock on this partition
+        private void appendTo(JSONObject json) {
+            for (GuildData data : guildData.values()) {
+                json.append("guildData", data.saveState());
+            }
+            appendPending(json, "guildData", pending);
+        }
+
     }
 
 }
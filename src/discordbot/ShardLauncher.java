@@ -0,0 +1,256 @@
+package discordbot;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.security.auth.login.LoginException;
+
+/**
+ * Runs several shards of a bot in one process, all sharing one partitioned ServerDatabase.
+ *
+ * Each shard gets its own DiscordBot listener and its own partition of the database. Each partition is saved to and
+ * loaded from its own file, so shards never lock or write each other's data. GlobalUserData is shared and saved to the
+ * main data file.
+ *
+ * Shards are created through a ShardFactory, so local stand-in shards can be used in place of real JDA connections.
+ *
+ * @author austinbt
+ */
+public class ShardLauncher {
+
+    /**
+     * A running shard
+     */
+    public interface Shard {
+
+        /**
+         * Disconnects this shard
+         */
+        void shutdown();
+    }
+
+    /**
+     * Creates and connects shards
+     */
+    public interface ShardFactory {
+
+        /**
+         * Connects a single shard and registers the given bot as its event listener
+         *
+         * @param shardId Id of the shard to connect
+         * @param shardCount Total number of shards
+         * @param bot Bot that handles events for this shard
+         * @return The connected shard
+         * @throws LoginException
+         * @throws InterruptedException
+         */
+        Shard start(int shardId, int shardCount, DiscordBot bot) throws LoginException, InterruptedException;
+    }
+
+    private final int shardCount;
+    private final String dataFile;
+    private final long saveRate;
+
+    private final ServerDatabase database;
+    private final DiscordBot[] bots;
+    private final Shard[] shards;
+    private final ArrayList<String> staleFiles = new ArrayList();
+    private boolean needsRewrite = false;
+    private Timer databaseSaver;
+
+    /**
+     * Creates a launcher and loads the shared database with 'ServerDatabase.loadAll'. GuildData saved in dataFile by a
+     * bot run without shards is loaded too, and is moved into the partition files on launch.
+     *
+     * Partition files saved with a different shard count are loaded too, and each guild is moved to the partition that
+     * owns it now. Once every partition has been saved again, partition files beyond the new shard count are kept only
+     * as their "[file].old" backup.
+     *
+     * GuildData and GlobalUserData records are loaded lazily, so shards can start handling events before every record
+     * has been parsed.
+     *
+     * @param shardCount Number of shards to run
+     * @param dataFile Path to the main database data file
+     * @param saveRate Time in milliseconds between database saves, 0 to only save when asked to and on shutdown
+     * @throws IOException If a saved file exists but neither it nor any of its backups could be read
+     */
+    public ShardLauncher(int shardCount, String dataFile, long saveRate) throws IOException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+
+        this.shardCount = shardCount;
+        this.dataFile = dataFile;
+        this.saveRate = saveRate;
+
+        database = new ServerDatabase(shardCount);
+        bots = new DiscordBot[shardCount];
+        shards = new Shard[shardCount];
+
+        loadDatabase();
+    }
+
+    private void loadDatabase() throws IOException {
+        List<String> files;
+        try {
+            files = database.loadAll(dataFile, ServerDatabase.LoadMode.LAZY);
+        } catch (FileNotFoundException ex) {
+            //Nothing saved yet
+            files = new ArrayList();
+        }
+
+        //Partition files this launcher will never write again
+        ArrayList<String> owned = new ArrayList();
+        for (int i = 0; i < shardCount; i++) {
+            owned.add(ServerDatabase.getPartitionFile(dataFile, i));
+        }
+        for (String file : files) {
+            if (file.equals(dataFile)) {
+                //GuildData saved without shards is moved into the partition files
+                needsRewrite = true;
+            } else if (!owned.contains(file)) {
+                staleFiles.add(file);
+                needsRewrite = true;
+            }
+        }
+
+        //Parse the indexed records in the background, any guild touched before then is parsed on demand
+        new Thread(database::materializeAll, "DatabaseLoader").start();
+    }
+
+    /**
+     * Starts every shard and the database save timer.
+     *
+     * If the database was loaded from a single-shard file or from partition files saved with another shard count, it is
+     * saved in this launcher's layout first.
+     *
+     * @param factory Factory used to connect each shard
+     * @throws LoginException
+     * @throws InterruptedException
+     */
+    public void launch(ShardFactory factory) throws LoginException, InterruptedException {
+        launch(factory, DiscordBot.EVENT_QUEUE_CAPACITY, DiscordBot.EVENT_QUEUE_POLICY);
+    }
+
+    /**
+     * Starts every shard and the database save timer, with each shard's bot handling events from a queue of the given
+     * capacity and policy.
+     *
+     * @param factory Factory used to connect each shard
+     * @param queueCapacity Capacity of each shard's event queue
+     * @param queuePolicy Policy of each shard's event queue
+     * @throws LoginException
+     * @throws InterruptedException
+     */
+    public void launch(ShardFactory factory, int queueCapacity, EventQueue.Policy queuePolicy) throws LoginException, InterruptedException {
+        if (needsRewrite) {
+            save();
+        }
+
+        for (int i = 0; i < shardCount; i++) {
+            bots[i] = new DiscordBot(database, new EventQueue(queueCapacity, queuePolicy));
+            shards[i] = factory.start(i, shardCount, bots[i]);
+        }
+
+        if (saveRate <= 0) {
+            return;
+        }
+
+        //Each shard saves only its own partition
+        databaseSaver = new Timer();
+        for (int i = 0; i < shardCount; i++) {
+            final int shardId = i;
+            databaseSaver.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    database.savePartition(shardId, ServerDatabase.getPartitionFile(dataFile, shardId));
+                }
+            }, saveRate, saveRate);
+        }
+        databaseSaver.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                database.saveGlobalUsers(dataFile);
+            }
+        }, saveRate, saveRate);
+    }
+
+    /**
+     * Saves every partition to its own file, and then GlobalUserData to the main data file.
+     *
+     * Once everything has been saved, partition files left by a larger shard count are kept only as their
+     * "[file].old" backup, so they are not loaded again.
+     *
+     * @return True if every file was saved
+     */
+    public synchronized boolean save() {
+        boolean saved = true;
+        for (int i = 0; i < shardCount; i++) {
+            saved &= database.savePartition(i, ServerDatabase.getPartitionFile(dataFile, i));
+        }
+        saved &= database.saveGlobalUsers(dataFile);
+
+        if (saved) {
+            needsRewrite = false;
+            for (String file : staleFiles) {
+                ServerDatabase.retireFile(file);
+            }
+            staleFiles.clear();
+        }
+
+        return saved;
+    }
+
+    /**
+     * Stops the save timer, disconnects every shard, handles every important event still queued, and saves the database
+     * one last time.
+     */
+    public void shutdown() {
+        if (databaseSaver != null) {
+            databaseSaver.cancel();
+            databaseSaver = null;
+        }
+
+        for (int i = 0; i < shardCount; i++) {
+            if (shards[i] != null) {
+                shards[i].shutdown();
+                shards[i] = null;
+            }
+            if (bots[i] != null) {
+                bots[i].getEventQueue().shutdown();
+                bots[i] = null;
+            }
+        }
+
+        save();
+    }
+
+    /**
+     *
+     * @return The database shared by all shards
+     */
+    public ServerDatabase getDatabase() {
+        return database;
+    }
+
+    /**
+     *
+     * @param shardId Id of the shard
+     * @return The bot handling events for the given shard. Null if not launched.
+     */
+    public DiscordBot getBot(int shardId) {
+        return bots[shardId];
+    }
+
+    /**
+     *
+     * @return Number of shards run by this launcher
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+}
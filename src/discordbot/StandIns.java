@@ -0,0 +1,175 @@
+package discordbot;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import net.dv8tion.jda.JDA;
+import net.dv8tion.jda.entities.Guild;
+import net.dv8tion.jda.entities.Message;
+import net.dv8tion.jda.entities.Role;
+import net.dv8tion.jda.entities.TextChannel;
+import net.dv8tion.jda.entities.User;
+
+/**
+ * Local stand-ins for JDA entities, so events can be fed to a bot without a connection to Discord.
+ *
+ * Stand-ins only answer the methods a bot needs to handle events. Any other method returns null, false, zero or an
+ * empty list. Messages sent by the bot are counted and discarded.
+ *
+ * Every guild has one public text channel, and every user is already a bot commander in every guild, so joining a guild
+ * never has to create roles.
+ *
+ * @author austinbt
+ */
+class StandIns {
+
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap();
+    private final ConcurrentHashMap<String, Guild> guilds = new ConcurrentHashMap();
+    private final ConcurrentHashMap<String, TextChannel> channels = new ConcurrentHashMap();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong nextMessageId = new AtomicLong();
+    private final Role commanderRole;
+    private final JDA jda;
+
+    /**
+     * Creates a new set of stand-ins
+     *
+     * @param botName Name of the bot, used to name the bot commander role
+     */
+    StandIns(String botName) {
+        HashMap<String, Function<Object[], Object>> role = new HashMap();
+        role.put("getName", (Object[] args) -> botName + " Commander");
+        role.put("getId", (Object[] args) -> "0");
+        commanderRole = standIn(Role.class, role);
+
+        HashMap<String, Function<Object[], Object>> api = new HashMap();
+        api.put("getTextChannelById", (Object[] args) -> channels.get((String) args[0]));
+        jda = standIn(JDA.class, api);
+    }
+
+    /**
+     *
+     * @return Stand-in JDA that resolves the text channels of stand-in guilds
+     */
+    JDA getJDA() {
+        return jda;
+    }
+
+    /**
+     *
+     * @return Number of messages the bot has sent to stand-in channels
+     */
+    long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    /**
+     *
+     * @param id Discord UserID
+     * @return The stand-in user with the given id, created on first use
+     */
+    User getUser(String id) {
+        return users.computeIfAbsent(id, (String key) -> {
+            HashMap<String, Function<Object[], Object>> user = new HashMap();
+            user.put("getId", (Object[] args) -> key);
+            user.put("getUsername", (Object[] args) -> "user" + key);
+            user.put("getAsMention", (Object[] args) -> "<@" + key + ">");
+            return standIn(User.class, user);
+        });
+    }
+
+    /**
+     *
+     * @param id Discord GuildID
+     * @return The stand-in guild with the given id, created on first use
+     */
+    Guild getGuild(String id) {
+        return guilds.computeIfAbsent(id, (String key) -> {
+            Guild[] guild = new Guild[1];
+
+            HashMap<String, Function<Object[], Object>> channel = new HashMap();
+            channel.put("getId", (Object[] args) -> key);
+            channel.put("getGuild", (Object[] args) -> guild[0]);
+            channel.put("sendMessage", (Object[] args) -> {
+                sentMessages.incrementAndGet();
+                return null;
+            });
+            TextChannel publicChannel = standIn(TextChannel.class, channel);
+            channels.put(key, publicChannel);
+
+            List<Role> roles = Collections.singletonList(commanderRole);
+            HashMap<String, Function<Object[], Object>> methods = new HashMap();
+            methods.put("getId", (Object[] args) -> key);
+            methods.put("getName", (Object[] args) -> "guild" + key);
+            methods.put("getPublicChannel", (Object[] args) -> publicChannel);
+            methods.put("getRolesByName", (Object[] args) -> roles);
+            methods.put("getRolesForUser", (Object[] args) -> roles);
+            guild[0] = standIn(Guild.class, methods);
+
+            return guild[0];
+        });
+    }
+
+    /**
+     * Creates a stand-in message
+     *
+     * @param author Author of the message
+     * @param guildId Discord GuildID of the guild the message was sent in, or null for a private message
+     * @param content Content of the message
+     * @return The stand-in message
+     */
+    Message createMessage(User author, String guildId, String content) {
+        //Make sure the guild's channel exists before the message refers to it
+        if (guildId != null) {
+            getGuild(guildId);
+        }
+
+        String id = Long.toString(nextMessageId.incrementAndGet());
+        HashMap<String, Function<Object[], Object>> message = new HashMap();
+        message.put("getId", (Object[] args) -> id);
+        message.put("getContent", (Object[] args) -> content);
+        message.put("getAuthor", (Object[] args) -> author);
+        message.put("isPrivate", (Object[] args) -> guildId == null);
+        message.put("getChannelId", (Object[] args) -> guildId);
+
+        return standIn(Message.class, message);
+    }
+
+    //Creates a proxy implementing type that answers methods by name from the given map
+    private static <T> T standIn(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (Object proxy, Method method, Object[] args) -> {
+            Function<Object[], Object> answer = methods.get(method.getName());
+            if (answer != null) {
+                return answer.apply(args);
+            }
+
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + " stand-in";
+            }
+
+            //Defaults for everything a bot doesn't need
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isPrimitive() && returnType != void.class) {
+                //Zero or false, boxed as the right type
+                return Array.get(Array.newInstance(returnType, 1), 0);
+            } else if (returnType == List.class) {
+                return Collections.emptyList();
+            }
+
+            return null;
+        }));
+    }
+
+}
@@ -0,0 +1,218 @@
+package discordbot;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests what ChangeSink writes when changes are missed or writing fails, and that a replica built from its output
+ * converges with the database it follows
+ *
+ * @author austinbt
+ */
+public class ChangeSinkTest {
+
+    private Path directory;
+
+    //Buffers writes until flushed, and fails to connect while 'failures' is above 0
+    private final StringWriter output = new StringWriter();
+    private int failures = 0;
+    private final ChangeSink.Connector connector = () -> {
+        if (failures > 0) {
+            failures--;
+            throw new IOException("Connection refused");
+        }
+        return new BufferedWriter(output);
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("changesinktest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static DatabaseChange change(long sequence, String guildId) {
+        return new DatabaseChange(sequence, 0, DatabaseChange.Type.GUILD_REMOVED, guildId, null, null);
+    }
+
+    private List<String> lines() {
+        String text = output.toString();
+        return text.isEmpty() ? new ArrayList() : Arrays.asList(text.split("\n"));
+    }
+
+    @Test
+    public void missedMarkerIsFlushedRightAway() {
+        ChangeSink sink = new ChangeSink(connector);
+
+        sink.onMissed(5);
+
+        assertEquals(Arrays.asList("{\"missed\":5}"), lines());
+        assertEquals(0, sink.getPendingMissed());
+    }
+
+    @Test
+    public void markerThatCouldNotBeWrittenIsWrittenBeforeTheNextBatch() {
+        ChangeSink sink = new ChangeSink(connector);
+
+        failures = 1;
+        sink.onMissed(3);
+        assertTrue(lines().isEmpty());
+        assertEquals(3, sink.getPendingMissed());
+
+        sink.onChanges(Arrays.asList(change(10, "1"), change(11, "2")));
+
+        List<String> lines = lines();
+        assertEquals(3, lines.size());
+        assertEquals(3, new JSONObject(lines.get(0)).getLong("missed"));
+        assertEquals(10, new DatabaseChange(new JSONObject(lines.get(1))).getSequence());
+        assertEquals(11, new DatabaseChange(new JSONObject(lines.get(2))).getSequence());
+        assertEquals(0, sink.getPendingMissed());
+        assertEquals(0, sink.getDropped());
+    }
+
+    @Test
+    public void droppedBatchIsReportedAsMissedBeforeTheNextBatch() {
+        ChangeSink sink = new ChangeSink(connector);
+
+        //Both the first attempt and the retry fail
+        failures = 2;
+        sink.onChanges(Arrays.asList(change(0, "1"), change(1, "2")));
+        assertEquals(2, sink.getDropped());
+        assertEquals(2, sink.getPendingMissed());
+
+        sink.onChanges(Arrays.asList(change(2, "3")));
+
+        List<String> lines = lines();
+        assertEquals(2, lines.size());
+        assertEquals(2, new JSONObject(lines.get(0)).getLong("missed"));
+        assertEquals(2, new DatabaseChange(new JSONObject(lines.get(1))).getSequence());
+    }
+
+    @Test
+    public void awkwardTextSurvivesTheRoundTrip() {
+        ChangeSink sink = new ChangeSink(connector);
+        String prefix = "\"}\n]\\,{\u00e9 \u2028\t";
+        JSONObject settings = GuildSettings.DEFAULT.withPrefix(prefix).saveState();
+
+        sink.onChanges(Arrays.asList(new DatabaseChange(7, 1, DatabaseChange.Type.GUILD_CHANGED, "1", null, settings)));
+
+        List<String> lines = lines();
+        assertEquals(1, lines.size());
+        DatabaseChange read = new DatabaseChange(new JSONObject(lines.get(0)));
+        assertEquals(7, read.getSequence());
+        assertEquals(DatabaseChange.Type.GUILD_CHANGED, read.getType());
+        assertEquals(prefix, new GuildSettings(read.getData()).getPrefix());
+    }
+
+    @Test(timeout = 30000)
+    public void replicaFromSnapshotAndSubscribeConverges() throws Exception {
+        String dataFile = directory.resolve("replica.data").toString();
+        String changeFile = directory.resolve("changes.log").toString();
+        ServerDatabase database = new ServerDatabase(2);
+        database.setLastSeenPublishInterval(0);
+        StandIns standIns = new StandIns("BOTTY");
+        for (int i = 0; i < 20; i++) {
+            database.addGuild(standIns.getGuild(Integer.toString(i)));
+        }
+
+        //Keep changing the database while the replica's file is saved
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                String guild = Integer.toString(i % 40);
+                database.addGuild(standIns.getGuild(guild));
+                database.updateGuildSettings(guild, (GuildSettings current) -> current.withPrefix("p" + current.getPrefix().length()));
+                GuildData data = database.getGuildData(guild);
+                if (data != null) {
+                    data.createUserData(standIns.getUser(Integer.toString(100 + i % 7)));
+                    if (i % 3 == 0) {
+                        data.removeUserData(Integer.toString(100 + i % 5));
+                    }
+                }
+                database.touchGlobalUser(standIns.getUser(Integer.toString(200 + i % 50)));
+                if (i % 11 == 0) {
+                    database.removeGuild(guild);
+                }
+                if (i % 100 == 0) {
+                    //Let the clock move on, so that touched users are seen at a later time
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+            database.addGuild(standIns.getGuild("end"));
+        });
+        writer.start();
+
+        ChangeSink sink = ChangeSink.toFile(changeFile);
+        ChangeStream.Subscription subscription = database.snapshotAndSubscribe(dataFile, sink);
+        writer.join();
+
+        //The last change written is the guild added after everything else
+        List<DatabaseChange> changes = new ArrayList();
+        while (changes.isEmpty() || !"end".equals(changes.get(changes.size() - 1).getGuildId())) {
+            Thread.sleep(10);
+            changes.clear();
+            //The sink may be part way through writing a line, so only complete lines are read
+            String text = new String(Files.readAllBytes(new File(changeFile).toPath()), StandardCharsets.UTF_8);
+            for (String line : text.substring(0, text.lastIndexOf('\n') + 1).split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JSONObject json = new JSONObject(line);
+                assertFalse("No changes should be missed", json.has("missed"));
+                changes.add(new DatabaseChange(json));
+            }
+        }
+        subscription.close();
+        sink.close();
+
+        ServerDatabase replica = new ServerDatabase(dataFile);
+        assertEquals(subscription.getStartSequence(), replica.getLoadedSequence());
+        for (DatabaseChange change : changes) {
+            if (change.getSequence() >= replica.getLoadedSequence()) {
+                replica.applyChange(change);
+            }
+        }
+
+        assertEquals(describe(database.snapshot()), describe(replica.snapshot()));
+    }
+
+    //Everything a replica must agree on, in a comparable form
+    private static List<String> describe(DatabaseSnapshot snapshot) {
+        List<String> description = snapshot.guilds()
+                .map((DatabaseSnapshot.GuildEntry guild) -> guild.getId() + " " + guild.getSettings().saveState() + " "
+                        + guild.getUsers().stream().map(GuildUserData::getId).sorted().collect(Collectors.toList()))
+                .sorted()
+                .collect(Collectors.toList());
+        description.addAll(snapshot.globalUsers()
+                .map((DatabaseSnapshot.GlobalUserEntry user) -> user.getId() + " " + user.getLastSeen())
+                .sorted()
+                .collect(Collectors.toList()));
+
+        return description;
+    }
+
+}
@@ -0,0 +1,143 @@
+package discordbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that ChangeStream delivers every change in order, and accounts for every change a slow subscriber misses
+ *
+ * @author austinbt
+ */
+public class ChangeStreamTest {
+
+    //Collects delivered sequences and missed counts, and lets a test wait for them
+    private static class Collector implements ChangeStream.Subscriber {
+
+        private final ArrayList<Long> sequences = new ArrayList();
+        private final ArrayList<Integer> batchSizes = new ArrayList();
+        private long missed = 0;
+
+        @Override
+        public synchronized void onChanges(List<DatabaseChange> changes) {
+            batchSizes.add(changes.size());
+            for (DatabaseChange change : changes) {
+                sequences.add(change.getSequence());
+            }
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onMissed(long missed) {
+            this.missed += missed;
+        }
+
+        //Waits until changes up to the given sequence have been delivered or missed
+        private synchronized void awaitAccounted(long count) throws InterruptedException {
+            while (sequences.size() + missed < count) {
+                wait();
+            }
+        }
+    }
+
+    private static void publish(ChangeStream stream, int count) {
+        for (int i = 0; i < count; i++) {
+            stream.publish(DatabaseChange.Type.GUILD_REMOVED, Integer.toString(i), null, null);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void everyChangeIsDeliveredInOrderInBoundedBatches() throws InterruptedException {
+        ChangeStream stream = new ChangeStream(1000, 7);
+        Collector collector = new Collector();
+        ChangeStream.Subscription subscription = stream.subscribe(collector);
+
+        publish(stream, 500);
+        collector.awaitAccounted(500);
+        subscription.close();
+
+        synchronized (collector) {
+            assertEquals(0, collector.missed);
+            for (int i = 0; i < 500; i++) {
+                assertEquals(i, (long) collector.sequences.get(i));
+            }
+            for (int size : collector.batchSizes) {
+                assertTrue(size >= 1 && size <= 7);
+            }
+        }
+        assertEquals(0, subscription.getStartSequence());
+        assertEquals(500, subscription.getNextSequence());
+    }
+
+    @Test(timeout = 10000)
+    public void slowSubscriberIsToldExactlyHowManyChangesItMissed() throws InterruptedException {
+        ChangeStream stream = new ChangeStream(10, 100);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Collector collector = new Collector() {
+            @Override
+            public void onChanges(List<DatabaseChange> changes) {
+                super.onChanges(changes);
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ChangeStream.Subscription subscription = stream.subscribe(collector);
+
+        //The first change is delivered, and the subscriber is stuck handling it while 30 more overrun the ring
+        publish(stream, 1);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        publish(stream, 30);
+        release.countDown();
+
+        collector.awaitAccounted(31);
+        subscription.close();
+
+        synchronized (collector) {
+            assertEquals(20, collector.missed);
+            assertEquals(20, subscription.getMissed());
+            assertEquals(11, collector.sequences.size());
+            assertEquals(0, (long) collector.sequences.get(0));
+            for (int i = 1; i < collector.sequences.size(); i++) {
+                assertEquals(20 + i, (long) collector.sequences.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void changesAreNotBuiltWithoutSubscribers() {
+        ChangeStream stream = new ChangeStream(10, 10);
+
+        stream.publish(DatabaseChange.Type.GUILD_ADDED, "1", null, () -> {
+            throw new AssertionError("Data was built without subscribers");
+        });
+
+        assertFalse(stream.hasSubscribers());
+    }
+
+    @Test(timeout = 10000)
+    public void subscriptionsStartAtTheNextPublishedChange() throws InterruptedException {
+        ChangeStream stream = new ChangeStream(100, 100);
+        Collector first = new Collector();
+        stream.subscribe(first);
+        publish(stream, 5);
+
+        Collector second = new Collector();
+        ChangeStream.Subscription subscription = stream.subscribe(second);
+        publish(stream, 5);
+        second.awaitAccounted(5);
+
+        assertEquals(5, subscription.getStartSequence());
+        synchronized (second) {
+            assertEquals(5, (long) second.sequences.get(0));
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package discordbot;
+
+import net.dv8tion.jda.events.message.MessageReceivedEvent;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Feeds commands to a DiscordBot through local stand-ins and checks their effect on the database
+ *
+ * @author austinbt
+ */
+public class DiscordBotTest {
+
+    private static final String GUILD_ID = "81384788765712384";
+    private static final String USER_ID = "100000000000000001";
+
+    //Handles the given messages, in order, as a commander in GUILD_ID and returns the database afterwards
+    private ServerDatabase handle(ServerDatabase database, String... messages) {
+        EventQueue queue = new EventQueue(100, EventQueue.Policy.PRIORITIZE);
+        DiscordBot bot = new DiscordBot(database, queue);
+        StandIns standIns = new StandIns(bot.BOT_NAME);
+
+        for (int i = 0; i < messages.length; i++) {
+            bot.onMessageReceived(new MessageReceivedEvent(standIns.getJDA(), i,
+                    standIns.createMessage(standIns.getUser(USER_ID), GUILD_ID, messages[i])));
+        }
+
+        //Commands are important events, so shutting down handles all of them first
+        queue.shutdown();
+
+        return database;
+    }
+
+    @Test
+    public void queuedSettingsCommandsAllApply() {
+        ServerDatabase database = handle(new ServerDatabase(), "!disable help", "!disable info", "!prefix ?");
+
+        GuildSettings settings = database.getGuildSettings(GUILD_ID);
+        assertTrue(settings.isCommandDisabled("help"));
+        assertTrue(settings.isCommandDisabled("info"));
+        assertEquals("?", settings.getPrefix());
+    }
+
+    @Test
+    public void settingsCommandCreatesMissingGuildData() {
+        ServerDatabase database = new ServerDatabase();
+        assertNull(database.getGuildData(GUILD_ID));
+
+        handle(database, "!prefix ?");
+
+        assertNotNull(database.getGuildData(GUILD_ID));
+        assertEquals("?", database.getGuildData(GUILD_ID).getSettings().getPrefix());
+    }
+
+    @Test
+    public void enableCanNotBeDisabledInAnyCase() {
+        ServerDatabase database = handle(new ServerDatabase(), "!disable Enable", "!disable ENABLE", "!disable enable", "!disable Help");
+
+        GuildSettings settings = database.getGuildSettings(GUILD_ID);
+        assertFalse(settings.isCommandDisabled("enable"));
+        assertTrue(settings.isCommandDisabled("help"));
+    }
+
+}
@@ -0,0 +1,208 @@
+package discordbot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests shedding, ordering and shutdown of EventQueue
+ *
+ * @author austinbt
+ */
+public class EventQueueTest {
+
+    private final List<String> handled = Collections.synchronizedList(new ArrayList());
+    private EventQueue queue;
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    //Handler that records its name when run
+    private Runnable record(String name) {
+        return () -> handled.add(name);
+    }
+
+    //Starts the queue and waits for it to handle everything that was queued
+    private void drain() throws InterruptedException {
+        long total = queue.getHandledCount() + queue.getDepth();
+        queue.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getHandledCount() < total) {
+            assertTrue("Queue did not drain", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void dropOldestShedsOldestSheddableEvent() throws InterruptedException {
+        queue = new EventQueue(3, EventQueue.Policy.DROP_OLDEST);
+
+        assertTrue(queue.submit(record("s1"), false));
+        assertTrue(queue.submit(record("s2"), false));
+        assertTrue(queue.submit(record("i1"), true));
+        assertTrue(queue.submit(record("s3"), false));
+        assertTrue(queue.submit(record("i2"), true));
+
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(3, queue.getDepth());
+        assertEquals(3, queue.getPeakDepth());
+
+        drain();
+        assertEquals(Arrays.asList("i1", "s3", "i2"), handled);
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void sheddableEventIsDroppedWhenOnlyImportantEventsAreQueued() throws InterruptedException {
+        queue = new EventQueue(2, EventQueue.Policy.DROP_OLDEST);
+
+        assertTrue(queue.submit(record("i1"), true));
+        assertTrue(queue.submit(record("i2"), true));
+        assertFalse(queue.submit(record("s1"), false));
+
+        assertEquals(1, queue.getDroppedCount());
+
+        drain();
+        assertEquals(Arrays.asList("i1", "i2"), handled);
+    }
+
+    @Test
+    public void prioritizeHandlesImportantEventsFirst() throws InterruptedException {
+        queue = new EventQueue(10, EventQueue.Policy.PRIORITIZE);
+
+        queue.submit(record("s1"), false);
+        queue.submit(record("i1"), true);
+        queue.submit(record("s2"), false);
+        queue.submit(record("i2"), true);
+
+        drain();
+        assertEquals(Arrays.asList("i1", "i2", "s1", "s2"), handled);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestKeepsSubmissionOrder() throws InterruptedException {
+        queue = new EventQueue(10, EventQueue.Policy.DROP_OLDEST);
+
+        queue.submit(record("s1"), false);
+        queue.submit(record("i1"), true);
+        queue.submit(record("s2"), false);
+        queue.submit(record("i2"), true);
+
+        drain();
+        assertEquals(Arrays.asList("s1", "i1", "s2", "i2"), handled);
+    }
+
+    @Test
+    public void blockWaitsForRoomAndDropsNothing() throws InterruptedException {
+        queue = new EventQueue(1, EventQueue.Policy.BLOCK);
+        queue.submit(record("s1"), false);
+
+        Thread producer = new Thread(() -> queue.submit(record("s2"), false));
+        producer.start();
+        producer.join(100);
+        assertTrue("Producer should wait for room", producer.isAlive());
+
+        queue.start();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+
+        drain();
+        assertEquals(Arrays.asList("s1", "s2"), handled);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void interruptedProducerStillQueuesImportantEvent() throws InterruptedException {
+        queue = new EventQueue(1, EventQueue.Policy.DROP_OLDEST);
+        queue.submit(record("i1"), true);
+
+        AtomicBoolean queued = new AtomicBoolean();
+        AtomicBoolean interruptRestored = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            queued.set(queue.submit(record("i2"), true));
+            interruptRestored.set(Thread.currentThread().isInterrupted());
+        });
+        producer.start();
+        producer.join(100);
+        producer.interrupt();
+        producer.join(100);
+        assertTrue("Important event should keep waiting after an interrupt", producer.isAlive());
+
+        queue.start();
+        producer.join(5000);
+
+        assertTrue(queued.get());
+        assertTrue(interruptRestored.get());
+        drain();
+        assertEquals(Arrays.asList("i1", "i2"), handled);
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void interruptedProducerDropsSheddableEvent() throws InterruptedException {
+        queue = new EventQueue(1, EventQueue.Policy.BLOCK);
+        queue.submit(record("s1"), false);
+
+        AtomicBoolean queued = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> queued.set(queue.submit(record("s2"), false)));
+        producer.start();
+        producer.join(100);
+        producer.interrupt();
+        producer.join(5000);
+
+        assertFalse(queued.get());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void shutdownHandlesQueuedImportantEvents() throws InterruptedException {
+        queue = new EventQueue(10, EventQueue.Policy.PRIORITIZE);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        queue.submit(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, true);
+        queue.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        queue.submit(record("s1"), false);
+        queue.submit(record("i1"), true);
+        queue.submit(record("i2"), true);
+
+        Thread stopper = new Thread(queue::shutdown);
+        stopper.start();
+        stopper.join(100);
+        assertTrue("Shutdown should wait for queued important events", stopper.isAlive());
+
+        release.countDown();
+        stopper.join(5000);
+        assertFalse(stopper.isAlive());
+
+        assertEquals(Arrays.asList("i1", "i2"), handled);
+        assertEquals(3, queue.getHandledCount());
+        assertEquals(1, queue.getDroppedCount());
+
+        assertFalse(queue.submit(record("i3"), true));
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+}
@@ -0,0 +1,83 @@
+package discordbot;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that RecordIndex finds record boundaries and ids without being fooled by the contents of strings
+ *
+ * @author austinbt
+ */
+public class RecordIndexTest {
+
+    @Test
+    public void indexesEveryElementOfEveryTopLevelArray() {
+        RecordIndex index = new RecordIndex("{\"guildData\":[{\"id\":\"1\"},{\"id\":\"2\",\"userData\":[{\"id\":\"9\"}]}],\"globalUserData\":[{\"id\":\"3\"}]}");
+
+        assertEquals(Arrays.asList("{\"id\":\"1\"}", "{\"id\":\"2\",\"userData\":[{\"id\":\"9\"}]}"), index.getRecords("guildData"));
+        assertEquals(Arrays.asList("{\"id\":\"3\"}"), index.getRecords("globalUserData"));
+    }
+
+    @Test
+    public void bracketsAndQuotesInsideStringsDoNotEndRecords() {
+        String tricky = "{\"id\":\"1\",\"prefix\":\"]}\\\"[{\\\\\",\"name\":\"\\\\\"}";
+        RecordIndex index = new RecordIndex("{\"guildData\":[" + tricky + ",{\"id\":\"2\"}]}");
+
+        assertEquals(Arrays.asList(tricky, "{\"id\":\"2\"}"), index.getRecords("guildData"));
+    }
+
+    @Test
+    public void keysContainingEscapedQuotesAreSkipped() {
+        RecordIndex index = new RecordIndex("{\"a\\\"]\":\"x\",\"guildData\":[{\"id\":\"1\"}]}");
+
+        assertEquals(Arrays.asList("{\"id\":\"1\"}"), index.getRecords("guildData"));
+    }
+
+    @Test
+    public void whitespaceAndNonArrayValuesAreSkipped() {
+        RecordIndex index = new RecordIndex(" {\n  \"version\" : 3 ,\n  \"name\" : \"a],b\",\n  \"flag\":true,\n  \"guildData\" : [ {\"id\":\"1\"} ,\n {\"id\":\"2\"} ]\n}\n");
+
+        assertEquals(Arrays.asList("{\"id\":\"1\"}", "{\"id\":\"2\"}"), index.getRecords("guildData"));
+    }
+
+    @Test
+    public void missingAndEmptyArraysHaveNoRecords() {
+        RecordIndex index = new RecordIndex("{\"guildData\":[]}");
+
+        assertTrue(index.getRecords("guildData").isEmpty());
+        assertTrue(index.getRecords("globalUserData").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unterminatedStringIsRejected() {
+        new RecordIndex("{\"guildData\":[{\"id\":\"1}]}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void textThatIsNotAnObjectIsRejected() {
+        new RecordIndex("[{\"id\":\"1\"}]");
+    }
+
+    @Test
+    public void findIdReadsTheTopLevelIdOnly() {
+        assertEquals("5", RecordIndex.findId("{\"id\":\"5\"}"));
+        assertEquals("5", RecordIndex.findId("{ \"settings\" : {\"id\":\"x\",\"prefix\":\"\\\"}\"} , \"id\" : \"5\" }"));
+        assertEquals("5", RecordIndex.findId("{\"userData\":[{\"id\":\"x\"}],\"id\":\"5\"}"));
+    }
+
+    @Test
+    public void findIdAcceptsTheLegacyArrayForm() {
+        assertEquals("7", RecordIndex.findId("{\"id\":[\"7\"]}"));
+        assertEquals("7", RecordIndex.findId("{\"id\": [ \"7\" ]}"));
+    }
+
+    @Test
+    public void findIdGivesUpOnIdsItCannotReadCheaply() {
+        assertNull(RecordIndex.findId("{\"id\":\"a\\\"b\"}"));
+        assertNull(RecordIndex.findId("{\"id\":5}"));
+        assertNull(RecordIndex.findId("{\"name\":\"id\"}"));
+        assertNull(RecordIndex.findId("[\"id\"]"));
+    }
+
+}
@@ -0,0 +1,343 @@
+package discordbot;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests loading and saving ServerDatabase files
+ *
+ * @author austinbt
+ */
+public class ServerDatabaseTest {
+
+    private Path directory;
+    private String dataFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("serverdatabasetest");
+        dataFile = directory.resolve("server.data").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private void write(String text) throws IOException {
+        Files.write(new File(dataFile).toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void legacyArrayIdsLoadInEveryMode() throws IOException {
+        write("{\"guildData\":[{\"id\":[\"123\"],\"userData\":[{\"id\":[\"9\"]}]}],\"globalUserData\":[{\"id\":[\"5\"]}]}");
+
+        for (ServerDatabase.LoadMode mode : ServerDatabase.LoadMode.values()) {
+            ServerDatabase database = new ServerDatabase(2, dataFile, mode);
+            database.materializeAll();
+
+            assertNotNull(mode.name(), database.getGuildData("123"));
+            assertTrue(mode.name(), database.getGuildData("123").hasUserData("9"));
+            assertNotNull(mode.name(), database.getGlobalUserData("5"));
+        }
+    }
+
+    @Test
+    public void unreadableRecordsAreSkippedInEveryMode() throws IOException {
+        write("{\"guildData\":[{\"id\":\"1\"},{\"id\":\"2\",\"settings\":\"oops\"},{\"name\":\"no id\"},{\"id\":\"3\"}],"
+                + "\"globalUserData\":[{\"id\":\"5\"},{\"id\":6},{\"id\":\"7\"}]}");
+
+        for (ServerDatabase.LoadMode mode : ServerDatabase.LoadMode.values()) {
+            ServerDatabase database = new ServerDatabase(2, dataFile, mode);
+
+            //A bad record parsed on first touch must not throw into the caller
+            assertNull(mode.name(), database.getGuildData("2"));
+
+            database.materializeAll();
+            assertEquals(mode.name(), 0, database.getPendingCount());
+            assertEquals(mode.name(), 2, database.getGuildCount());
+            assertNotNull(mode.name(), database.getGuildData("1"));
+            assertNotNull(mode.name(), database.getGuildData("3"));
+            assertEquals(mode.name(), 2, database.getGlobalUserCount());
+            assertEquals(mode.name(), 2, database.snapshot().getGuildCount());
+        }
+    }
+
+    @Test
+    public void lazyRecordsSurviveASaveWithoutBeingParsed() throws IOException {
+        write("{\"guildData\":[{\"id\":\"1\",\"settings\":{\"prefix\":\"?\"}},{\"id\":\"2\"}]}");
+
+        ServerDatabase database = new ServerDatabase(1, dataFile, ServerDatabase.LoadMode.LAZY);
+        assertEquals(2, database.getPendingCount());
+        assertTrue(database.saveDatabase(dataFile));
+
+        ServerDatabase reloaded = new ServerDatabase(dataFile);
+        assertEquals(2, reloaded.getGuildCount());
+        assertEquals("?", reloaded.getGuildSettings("1").getPrefix());
+    }
+
+    @Test
+    public void concurrentSettingsUpdatesAreNotLost() throws InterruptedException {
+        ServerDatabase database = new ServerDatabase(2);
+        database.addGuild(new StandIns("BOTTY").getGuild("1"));
+        assertNull(database.updateGuildSettings("2", (GuildSettings current) -> current.withPrefix("?")));
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            String command = "command" + i;
+            threads[i] = new Thread(() -> database.updateGuildSettings("1", (GuildSettings current) -> current.withCommandDisabled(command, true)));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < threads.length; i++) {
+            assertTrue(database.getGuildSettings("1").isCommandDisabled("command" + i));
+            assertTrue(database.getGuildData("1").getSettings().isCommandDisabled("command" + i));
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingFileIsNotFound() throws IOException {
+        new ServerDatabase(dataFile);
+    }
+
+    @Test
+    public void corruptFileFallsBackToNewestReadableBackup() throws IOException {
+        ServerDatabase database = new ServerDatabase();
+        database.setCompression(ServerDatabase.Compression.DEFLATE);
+        database.setBackupGenerations(3);
+        StandIns standIns = new StandIns("BOTTY");
+
+        database.addGuild(standIns.getGuild("1"));
+        assertTrue(database.saveDatabase(dataFile));
+        database.addGuild(standIns.getGuild("2"));
+        assertTrue(database.saveDatabase(dataFile));
+        database.addGuild(standIns.getGuild("3"));
+        assertTrue(database.saveDatabase(dataFile));
+
+        //Truncated gzip data, and a newest backup that is not JSON at all
+        byte[] saved = Files.readAllBytes(new File(dataFile).toPath());
+        Files.write(new File(dataFile).toPath(), Arrays.copyOf(saved, saved.length / 2));
+        Files.write(new File(ServerDatabase.getBackupFile(dataFile, 1)).toPath(), "{\"guildData\":[{".getBytes(StandardCharsets.UTF_8));
+
+        ServerDatabase reloaded = new ServerDatabase(dataFile);
+        assertEquals(1, reloaded.getGuildCount());
+        assertNotNull(reloaded.getGuildData("1"));
+    }
+
+    @Test
+    public void corruptFileWithoutBackupsIsAnError() throws IOException {
+        write("{\"guildData\":[{\"id\":\"1\"}");
+
+        try {
+            new ServerDatabase(dataFile);
+            fail("A corrupt file must not load as an empty database");
+        } catch (FileNotFoundException ex) {
+            fail("A corrupt file is not a missing file");
+        } catch (IOException ex) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void savingKeepsThePermissionsOfTheReplacedFile() throws IOException {
+        ServerDatabase database = new ServerDatabase();
+        assertTrue(database.saveDatabase(dataFile));
+
+        Path file = new File(dataFile).toPath();
+        Set<PosixFilePermission> permissions;
+        try {
+            permissions = PosixFilePermissions.fromString("rw-r-----");
+            Files.setPosixFilePermissions(file, permissions);
+        } catch (UnsupportedOperationException ex) {
+            //Not a POSIX file system, nothing to check
+            return;
+        }
+
+        assertTrue(database.saveDatabase(dataFile));
+        assertEquals(permissions, Files.getPosixFilePermissions(file));
+    }
+
+    @Test
+    public void snapshotsAreCopiesAndLeaveLazyRecordsUnparsed() throws IOException {
+        write("{\"guildData\":[{\"id\":\"1\",\"userData\":[{\"id\":\"9\"}]},{\"id\":\"2\",\"settings\":{\"prefix\":\"?\"}}],"
+                + "\"globalUserData\":[{\"id\":\"5\",\"lastSeen\":0}]}");
+        ServerDatabase database = new ServerDatabase(2, dataFile, ServerDatabase.LoadMode.LAZY);
+        database.getGuildData("1");
+
+        DatabaseSnapshot snapshot = database.snapshot();
+        assertEquals(2, snapshot.getGuildCount());
+        assertEquals(1, snapshot.getGlobalUserCount());
+        //Guild 2 and global user 5
+        assertEquals(2, database.getPendingCount());
+
+        database.updateGuildSettings("1", (GuildSettings current) -> current.withPrefix("$"));
+        database.getGuildData("1").removeUserData("9");
+        database.getGlobalUserData("5").touch();
+
+        DatabaseSnapshot.GuildEntry first = snapshot.guilds().filter((DatabaseSnapshot.GuildEntry guild) -> guild.getId().equals("1")).findAny().get();
+        DatabaseSnapshot.GuildEntry second = snapshot.guilds().filter((DatabaseSnapshot.GuildEntry guild) -> guild.getId().equals("2")).findAny().get();
+        assertEquals(GuildSettings.DEFAULT.getPrefix(), first.getSettings().getPrefix());
+        assertEquals(1, first.getUserCount());
+        assertEquals("?", second.getSettings().getPrefix());
+        assertEquals(1, snapshot.staleGlobalUsers(1000).size());
+        assertEquals(0, database.snapshot().staleGlobalUsers(1000).size());
+    }
+
+    @Test
+    public void appliedAddsReplaceExistingAndPendingRecords() throws IOException {
+        write("{\"guildData\":[{\"id\":\"1\",\"settings\":{\"prefix\":\"?\"}},{\"id\":\"2\",\"settings\":{\"prefix\":\"?\"}}],"
+                + "\"globalUserData\":[{\"id\":\"5\",\"lastSeen\":1}]}");
+        ServerDatabase database = new ServerDatabase(2, dataFile, ServerDatabase.LoadMode.LAZY);
+        database.getGuildData("1");
+        JSONObject guild = new JSONObject();
+        guild.put("id", "1");
+        guild.put("settings", GuildSettings.DEFAULT.withPrefix("$").saveState());
+
+        database.applyChange(new DatabaseChange(0, 0, DatabaseChange.Type.GUILD_ADDED, "1", null, guild));
+        guild.put("id", "2");
+        database.applyChange(new DatabaseChange(1, 0, DatabaseChange.Type.GUILD_ADDED, "2", null, guild));
+        JSONObject user = new JSONObject();
+        user.put("id", "5");
+        user.put("lastSeen", 2);
+        database.applyChange(new DatabaseChange(2, 0, DatabaseChange.Type.GLOBAL_USER_ADDED, null, "5", user));
+
+        assertEquals("$", database.getGuildSettings("1").getPrefix());
+        assertEquals("$", database.getGuildData("1").getSettings().getPrefix());
+        assertEquals("$", database.getGuildSettings("2").getPrefix());
+        assertEquals(0, database.getPendingCount());
+        assertEquals(2, database.getGuildCount());
+        assertEquals(2, database.getGlobalUserData("5").getLastSeen());
+    }
+
+    @Test
+    public void unreadableLazyRecordsDoNotBreakSaving() throws IOException {
+        write("{\"guildData\":[{\"id\":\"1\"},{\"id\":\"2\", bad}]}");
+
+        //Saved without parsing anything first
+        ServerDatabase database = new ServerDatabase(1, dataFile, ServerDatabase.LoadMode.LAZY);
+        assertTrue(database.saveDatabase(dataFile));
+        assertEquals(1, new ServerDatabase(dataFile).getGuildCount());
+
+        //Saved after parsing everything in the background
+        write("{\"guildData\":[{\"id\":\"1\"},{\"id\":\"2\", bad}]}");
+        database = new ServerDatabase(1, dataFile, ServerDatabase.LoadMode.LAZY);
+        database.materializeAll();
+        assertEquals(0, database.getPendingCount());
+        assertEquals(1, database.getGuildCount());
+        assertTrue(database.saveDatabase(dataFile));
+        assertTrue(database.savePartition(0, ServerDatabase.getPartitionFile(dataFile, 0)));
+        assertEquals(1, new ServerDatabase(dataFile).getGuildCount());
+    }
+
+    @Test
+    public void globalUsersAreIndexedLazily() throws IOException {
+        write("{\"globalUserData\":[{\"id\":\"5\",\"lastSeen\":7},{\"id\":\"6\"},{\"id\":\"8\", bad}]}");
+        ServerDatabase database = new ServerDatabase(1, dataFile, ServerDatabase.LoadMode.LAZY);
+        StandIns standIns = new StandIns("BOTTY");
+
+        assertEquals(3, database.getPendingCount());
+        assertEquals(7, database.getGlobalUserData("5").getLastSeen());
+        assertEquals(2, database.getPendingCount());
+
+        //Touching a pending user parses it instead of adding a duplicate
+        assertFalse(database.addGlobalUser(standIns.getUser("6")));
+        assertEquals(1, database.getPendingCount());
+        assertEquals(2, database.snapshot().getGlobalUserCount());
+
+        assertTrue(database.saveDatabase(dataFile));
+        ServerDatabase reloaded = new ServerDatabase(dataFile);
+        assertEquals(2, reloaded.getGlobalUserCount());
+        assertEquals(7, reloaded.getGlobalUserData("5").getLastSeen());
+
+        database.materializeAll();
+        assertEquals(0, database.getPendingCount());
+        assertEquals(2, database.getGlobalUserCount());
+    }
+
+    @Test(timeout = 10000)
+    public void seenUsersArePublishedAtMostOncePerInterval() throws InterruptedException {
+        ServerDatabase database = new ServerDatabase();
+        StandIns standIns = new StandIns("BOTTY");
+        database.touchGlobalUser(standIns.getUser("5"));
+        ArrayList<DatabaseChange.Type> published = new ArrayList();
+        database.subscribe((List<DatabaseChange> changes) -> {
+            synchronized (published) {
+                changes.forEach((DatabaseChange change) -> published.add(change.getType()));
+                published.notifyAll();
+            }
+        });
+
+        //Within the interval nothing is published, after it the latest lastSeen is
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(2);
+            database.touchGlobalUser(standIns.getUser("5"));
+        }
+        database.setLastSeenPublishInterval(0);
+        Thread.sleep(2);
+        database.touchGlobalUser(standIns.getUser("5"));
+        database.addGuild(standIns.getGuild("1"));
+
+        synchronized (published) {
+            while (published.size() < 2) {
+                published.wait();
+            }
+            assertEquals(Arrays.asList(DatabaseChange.Type.GLOBAL_USER_SEEN, DatabaseChange.Type.GUILD_ADDED), published);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void snapshotsRunAlongsideWriters() throws Exception {
+        ServerDatabase database = new ServerDatabase();
+        StandIns standIns = new StandIns("BOTTY");
+        for (int i = 0; i < 100; i++) {
+            database.addGuild(standIns.getGuild("kept" + i));
+            database.touchGlobalUser(standIns.getUser("kept" + i));
+        }
+
+        //Guilds and users come and go while snapshots are taken
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 20000; i++) {
+                database.addGuild(standIns.getGuild("churn" + i % 50));
+                database.getGuildData("kept" + i % 100).createUserData(standIns.getUser(Integer.toString(i % 30)));
+                database.touchGlobalUser(standIns.getUser("churn" + i % 50));
+                database.removeGuild("churn" + (i + 25) % 50);
+                database.removeGlobalUserData("churn" + (i + 25) % 50);
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            DatabaseSnapshot snapshot = database.snapshot();
+            for (int i = 0; i < 100; i++) {
+                String id = "kept" + i;
+                assertTrue(snapshot.guilds().anyMatch((DatabaseSnapshot.GuildEntry guild) -> guild.getId().equals(id)));
+                assertTrue(snapshot.globalUsers().anyMatch((DatabaseSnapshot.GlobalUserEntry user) -> user.getId().equals(id)));
+            }
+            assertTrue(snapshot.getGuildCount() <= 150);
+        }
+        writer.join();
+    }
+
+}
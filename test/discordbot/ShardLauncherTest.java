@@ -0,0 +1,189 @@
+package discordbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.security.auth.login.LoginException;
+import net.dv8tion.jda.events.guild.GuildJoinEvent;
+import net.dv8tion.jda.events.message.MessageReceivedEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs ShardLauncher with local stand-in shards and checks partition routing, partition files and shutdown
+ *
+ * @author austinbt
+ */
+public class ShardLauncherTest {
+
+    private static final int GUILDS = 12;
+    private static final String USER_ID = "100000000000000001";
+
+    private Path directory;
+    private String dataFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("shardlaunchertest");
+        dataFile = directory.resolve("server.data").toString();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    //Snowflakes spread across shards the same way real guild ids are
+    private static String guildId(int index) {
+        return Long.toString(((long) index << 22) + 81384788765712384L);
+    }
+
+    //Launches stand-in shards, joins every guild through the owning shard's bot, and shuts the launcher down
+    private boolean[] runShards(int shardCount) throws IOException, LoginException, InterruptedException {
+        ShardLauncher launcher = new ShardLauncher(shardCount, dataFile, 60 * 1000);
+        StandIns standIns = new StandIns("BOTTY");
+        boolean[] disconnected = new boolean[shardCount];
+        List<Integer> started = new ArrayList();
+
+        launcher.launch((int shardId, int count, DiscordBot bot) -> {
+            assertEquals(shardCount, count);
+            started.add(shardId);
+            return () -> disconnected[shardId] = true;
+        });
+        assertEquals(Arrays.asList(0, 1, 2, 3).subList(0, shardCount), started);
+
+        for (int i = 0; i < GUILDS; i++) {
+            String id = guildId(i);
+            DiscordBot bot = launcher.getBot(ServerDatabase.getShardId(id, shardCount));
+            bot.onGuildJoin(new GuildJoinEvent(standIns.getJDA(), i, standIns.getGuild(id)));
+        }
+        launcher.getBot(0).onMessageReceived(new MessageReceivedEvent(standIns.getJDA(), GUILDS,
+                standIns.createMessage(standIns.getUser(USER_ID), guildId(0), "!help")));
+
+        //Queued joins and commands must reach the database before the final save
+        launcher.shutdown();
+        assertNull(launcher.getBot(0));
+
+        return disconnected;
+    }
+
+    @Test
+    public void shutdownDisconnectsEveryShardAndSavesEachPartition() throws Exception {
+        boolean[] disconnected = runShards(2);
+        assertTrue(disconnected[0] && disconnected[1]);
+
+        //Each partition file holds exactly the guilds its shard owns
+        for (int shard = 0; shard < 2; shard++) {
+            ServerDatabase partition = new ServerDatabase(ServerDatabase.getPartitionFile(dataFile, shard));
+            for (int i = 0; i < GUILDS; i++) {
+                boolean owned = ServerDatabase.getShardId(guildId(i), 2) == shard;
+                assertEquals("Guild " + i + " in shard file " + shard, owned, partition.getGuildData(guildId(i)) != null);
+            }
+        }
+
+        ServerDatabase main = new ServerDatabase(dataFile);
+        assertNotNull(main.getGlobalUserData(USER_ID));
+        assertEquals(0, main.getGuildCount());
+    }
+
+    @Test
+    public void changingShardCountKeepsEveryGuild() throws Exception {
+        runShards(2);
+
+        //More shards: every guild is loaded, and lands in the partition that now owns it
+        ShardLauncher more = new ShardLauncher(3, dataFile, 60 * 1000);
+        for (int i = 0; i < GUILDS; i++) {
+            assertNotNull("Guild " + i + " after growing", more.getDatabase().getGuildData(guildId(i)));
+            assertEquals(ServerDatabase.getShardId(guildId(i), 3), more.getDatabase().getPartition(guildId(i)));
+        }
+        assertNotNull(more.getDatabase().getGlobalUserData(USER_ID));
+        assertTrue(more.save());
+        assertEquals(3, ServerDatabase.findPartitionFiles(dataFile).size());
+
+        //Fewer shards: files beyond the new count are still read, then retired once everything is saved again
+        ShardLauncher fewer = new ShardLauncher(1, dataFile, 60 * 1000);
+        for (int i = 0; i < GUILDS; i++) {
+            assertNotNull("Guild " + i + " after shrinking", fewer.getDatabase().getGuildData(guildId(i)));
+        }
+        assertTrue(fewer.save());
+        assertEquals(Arrays.asList(ServerDatabase.getPartitionFile(dataFile, 0)), ServerDatabase.findPartitionFiles(dataFile));
+        assertTrue(new File(ServerDatabase.getBackupFile(ServerDatabase.getPartitionFile(dataFile, 2), 1)).exists());
+
+        ServerDatabase single = new ServerDatabase(ServerDatabase.getPartitionFile(dataFile, 0));
+        assertEquals(GUILDS, single.getGuildCount());
+    }
+
+    @Test
+    public void singleFileDatabaseIsMigratedOnLaunch() throws Exception {
+        ServerDatabase original = new ServerDatabase();
+        StandIns standIns = new StandIns("BOTTY");
+        for (int i = 0; i < GUILDS; i++) {
+            original.addGuild(standIns.getGuild(guildId(i)));
+        }
+        original.addGlobalUser(standIns.getUser(USER_ID));
+        assertTrue(original.saveDatabase(dataFile));
+
+        ShardLauncher launcher = new ShardLauncher(2, dataFile, 60 * 1000);
+        launcher.launch((int shardId, int count, DiscordBot bot) -> () -> {
+        });
+        assertEquals(2, ServerDatabase.findPartitionFiles(dataFile).size());
+        launcher.shutdown();
+
+        ServerDatabase reloaded = new ShardLauncher(2, dataFile, 60 * 1000).getDatabase();
+        for (int i = 0; i < GUILDS; i++) {
+            assertNotNull(reloaded.getGuildData(guildId(i)));
+        }
+        assertNotNull(reloaded.getGlobalUserData(USER_ID));
+    }
+
+    @Test
+    public void botWithoutShardsLoadsAndRetiresPartitionFiles() throws Exception {
+        runShards(2);
+
+        ServerDatabase database = DiscordBot.loadDatabase(dataFile);
+        assertEquals(GUILDS, database.getGuildCount());
+        assertNotNull(database.getGlobalUserData(USER_ID));
+
+        //Everything now lives in the data file, and the partition files are only kept as backups
+        assertTrue(ServerDatabase.findPartitionFiles(dataFile).isEmpty());
+        assertTrue(new File(ServerDatabase.getBackupFile(ServerDatabase.getPartitionFile(dataFile, 1), 1)).exists());
+        assertEquals(GUILDS, new ServerDatabase(dataFile).getGuildCount());
+    }
+
+    @Test
+    public void shardsLoadNewerGuildDataFromTheDataFile() throws Exception {
+        runShards(2);
+
+        //A bot without shards saved newer GuildData, but stopped before retiring the partition files
+        ServerDatabase unsharded = new ServerDatabase();
+        assertEquals(2, unsharded.loadAll(dataFile, ServerDatabase.LoadMode.EAGER).size());
+        unsharded.updateGuildSettings(guildId(0), (GuildSettings current) -> current.withPrefix("?"));
+        unsharded.addGuild(new StandIns("BOTTY").getGuild(guildId(GUILDS)));
+        assertTrue(unsharded.saveDatabase(dataFile));
+
+        ShardLauncher launcher = new ShardLauncher(2, dataFile, 60 * 1000);
+        assertEquals(GUILDS + 1, launcher.getDatabase().getGuildCount());
+        assertEquals("?", launcher.getDatabase().getGuildSettings(guildId(0)).getPrefix());
+
+        //Launching moves the GuildData out of the data file and into the partitions
+        launcher.launch((int shardId, int count, DiscordBot bot) -> () -> {
+        });
+        launcher.shutdown();
+        assertEquals(0, new ServerDatabase(dataFile).getGuildCount());
+
+        ServerDatabase reloaded = new ShardLauncher(2, dataFile, 60 * 1000).getDatabase();
+        assertEquals(GUILDS + 1, reloaded.getGuildCount());
+        assertEquals("?", reloaded.getGuildSettings(guildId(0)).getPrefix());
+    }
+
+}